@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -38,6 +34,15 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * The machine has exactly one processor, and at most one TCB runs at a time.
+ * The kernel depends on this: disabling interrupts is its only means of
+ * mutual exclusion (<tt>Semaphore</tt>, <tt>Lock</tt>, and the schedulers are
+ * all built on it), and the interrupt state, the current thread, the TLB,
+ * and simulated time are all single, global values. Running several
+ * processors at once would need spinlocks beneath every one of those, so
+ * there is no SMP mode; processes share the one processor by time-slicing.
  */
 public final class Interrupt {
     /**
@@ -53,7 +58,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new TimerHeap(16);
     }
 
     /**
@@ -120,17 +125,48 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to just before the next pending interrupt,
+     * charging the kernel ticks that would have been spent getting there one
+     * <tt>yield()</tt> at a time. Time is advanced in whole kernel ticks, so
+     * the interrupt still occurs on the same tick as it would have without
+     * the skip.
+     *
+     * <p>
+     * This should only be called by the idle thread, with interrupts
+     * enabled. Nothing is skipped if an interrupt handler has run since the
+     * last call, since the handler might have made another thread ready.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	boolean handlersRan = (numHandlersRun != numHandlersRunAtIdle);
+	numHandlersRunAtIdle = numHandlersRun;
+	
+	if (handlersRan || pending.isEmpty() || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	
+	long skip = (pending.firstTime() - stats.totalTicks - 1) /
+	    Stats.KernelTick;
+	if (skip <= 0)
+	    return;
+
+	stats.kernelTicks += skip * Stats.KernelTick;
+	stats.totalTicks += skip * Stats.KernelTick;
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, numPendingInterruptsCreated++, type, handler);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +189,31 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long quietTicks() {
+	// with interrupt debugging on, every tick has to be printed
+	if (Lib.test(dbgInt) || !enabled)
+	    return 0;
+
+	if (pending.isEmpty())
+	    return Long.MAX_VALUE;
+
+	long quiet = pending.firstTime() - privilege.stats.totalTicks - 1;
+	if (quiet <= 0)
+	    return 0;
+	
+	return quiet / Stats.UserTick;
+    }
+
+    private void advance(long userTicks) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += userTicks * Stats.UserTick;
+	stats.totalTicks += userTicks * Stats.UserTick;
+
+	Lib.assertTrue(pending.isEmpty() ||
+		       pending.firstTime() > stats.totalTicks);
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -164,24 +225,25 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.firstTime() > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
+	    numHandlersRun++;
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,52 +254,23 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	int[] order = pending.slotsInOrder();
+	for (int i=0; i<order.length; i++) {
+	    System.out.println("  " + pending.type(order[i]) +
+			       ", scheduled at " + pending.time(order[i]));
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
     private long numPendingInterruptsCreated = 0;
+    private long numHandlersRun = 0;
+    private long numHandlersRunAtIdle = -1;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private TimerHeap pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +282,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long quietTicks() {
+	    return Interrupt.this.quietTicks();
+	}
+
+	public void advance(long userTicks) {
+	    Interrupt.this.advance(userTicks);
+	}
     }
 }
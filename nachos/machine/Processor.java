@@ -46,6 +46,12 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new DecodedInstruction[mainMemory.length / 4];
+
+	if (Config.getBoolean("Processor.blockTranslation", false)) {
+	    blockCache = new BasicBlock[mainMemory.length / 4];
+	    blockCounts = new int[mainMemory.length / 4];
+	}
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -92,19 +98,88 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// translated blocks skip the per-instruction disassembly output
+	boolean translating = blockCache != null && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
 	
 	while (true) {
+	    BasicBlock block = null;
+	    
 	    try {
-		inst.run();
+		if (translating)
+		    block = lookupBlock(registers[regPC]);
+
+		if (block == null)
+		    inst.run();
 	    }
 	    catch (MipsException e) {
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    if (block != null)
+		block.run();
+	    else
+		tick();
 	}
     }
 
+    /**
+     * Advance the simulated time by one user tick. While no interrupt can
+     * become due, ticks are only counted, and charged to the statistics
+     * later by <tt>settleTicks()</tt>.
+     */
+    private void tick() {
+	if (quietTicks > 0) {
+	    quietTicks--;
+	    batchedTicks++;
+	    return;
+	}
+
+	settleTicks();
+	privilege.interrupt.tick(false);
+	quietTicks = privilege.interrupt.quietTicks();
+    }
+
+    /**
+     * Charge any batched ticks, so that the kernel sees the exact current
+     * time. Must be called before any kernel code runs.
+     */
+    private void settleTicks() {
+	if (batchedTicks > 0) {
+	    privilege.interrupt.advance(batchedTicks);
+	    batchedTicks = 0;
+	}
+	quietTicks = 0;
+    }
+
+    /**
+     * Return the translated basic block starting at the specified virtual
+     * address, translating it if it has been entered often enough. Returns
+     * <tt>null</tt> if the instruction at <i>pc</i> should just be
+     * interpreted.
+     *
+     * @param	pc	the virtual address of the next instruction.
+     * @return	the block starting at <i>pc</i>, or <tt>null</tt>.
+     * @exception	MipsException	if <i>pc</i> could not be translated.
+     */
+    private BasicBlock lookupBlock(int pc) throws MipsException {
+	int paddr = translate(pc, 4, false);
+	int index = paddr>>2;
+
+	BasicBlock block = blockCache[index];
+	if (block != null && block.isCurrent())
+	    return block;
+
+	if (++blockCounts[index] < blockThreshold)
+	    return null;
+
+	blockCounts[index] = 0;
+	block = new BasicBlock(paddr);
+	blockCache[index] = block;
+	return block;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -405,9 +480,14 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// self-modifying code: stop running the old translation
+	if (paddr < blockEnd && paddr+size > blockStart)
+	    leaveBlock = true;
     }
 
     /**
@@ -556,6 +636,42 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * Decoded instructions, indexed by physical word address. Each entry is
+     * tagged with the instruction word it was decoded from, so a stale entry
+     * (because the page was written by a store, reloaded by the kernel
+     * through <tt>getMemory()</tt>, or given to another process) is simply
+     * decoded again on its next fetch.
+     */
+    private DecodedInstruction[] decodeCache;
+
+    /**
+     * Translated basic blocks, indexed by the physical word address of their
+     * first instruction, or <tt>null</tt> if block translation is disabled.
+     */
+    private BasicBlock[] blockCache = null;
+    /** Number of times each word has been entered as an untranslated block. */
+    private int[] blockCounts;
+    /** Entries into an untranslated block before it gets translated. */
+    private static final int blockThreshold = 16;
+    /** Maximum number of instructions in a translated block. */
+    private static final int maxBlockLength = 64;
+
+    /** User ticks that can still pass before an interrupt is due. */
+    private long quietTicks = 0;
+    /** User ticks that have passed but not yet been charged. */
+    private long batchedTicks = 0;
+
+    /** Physical address range of the block currently running. */
+    private int blockStart = 0, blockEnd = 0;
+    /**
+     * Set when the running block must stop after the current instruction,
+     * either because the kernel ran (an interrupt or exception handler, so
+     * maybe a context switch) or because the block's own code was
+     * overwritten.
+     */
+    private boolean leaveBlock;
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
@@ -566,6 +682,7 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    leaveBlock = true;
 	}
     }
 
@@ -584,6 +701,8 @@ public final class Processor {
 	}
 
 	public void handle() {
+	    settleTicks();
+	    
 	    writeRegister(regCause, cause);
 
 	    if (hasBadVAddr)
@@ -593,6 +712,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    leaveBlock = true;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -626,78 +746,53 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    // the register-independent part of decoding comes from the cache
+	    DecodedInstruction info = decodeCache[paddr>>2];
+	    if (info == null) {
+		info = new DecodedInstruction();
+		decodeCache[paddr>>2] = info;
 	    }
+	    if (!info.decoded || info.value != value)
+		info.decode(value);
+
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1147,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1158,422 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A straight-line run of instructions in one physical page, ending with a
+     * branch and its delay slot, or with an instruction that always traps.
+     * Each instruction is translated once into a <tt>TranslatedInstruction</tt>
+     * with its operands already bound, so running the block skips fetch and
+     * decode entirely. Timing is the same as the interpreter: the processor
+     * still ticks after every instruction.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    this.paddr = paddr;
+
+	    int pageEnd = (paddr/pageSize + 1) * pageSize;
+	    int[] words = new int[maxBlockLength];
+	    TranslatedInstruction[] code =
+		new TranslatedInstruction[maxBlockLength];
+	    int length = 0;
+	    boolean delaySlot = false;
+
+	    for (int addr=paddr; addr<pageEnd && length<maxBlockLength;
+		 addr+=4) {
+		DecodedInstruction info = new DecodedInstruction();
+		info.decode(Lib.bytesToInt(mainMemory, addr, 4));
+
+		words[length] = info.value;
+		code[length] = translateInstruction(addr, info);
+		length++;
+
+		if (delaySlot)
+		    break;
+		if (Lib.test(Mips.BRANCH, info.flags))
+		    delaySlot = true;
+		else if (info.operation == Mips.SYSCALL ||
+			 info.operation == Mips.UNIMPL ||
+			 info.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    this.words = new int[length];
+	    this.code = new TranslatedInstruction[length];
+	    System.arraycopy(words, 0, this.words, 0, length);
+	    System.arraycopy(code, 0, this.code, 0, length);
+	}
+
+	/**
+	 * Check that memory still holds the instructions this block was
+	 * translated from.
+	 */
+	boolean isCurrent() {
+	    for (int i=0; i<words.length; i++) {
+		if (Lib.bytesToInt(mainMemory, paddr + i*4, 4) != words[i])
+		    return false;
+	    }
+	    return true;
+	}
+
+	/**
+	 * Run the block from its first instruction, which must be at the
+	 * current PC. Stops early if control leaves the block, an exception
+	 * occurs, or an interrupt handler runs.
+	 */
+	void run() {
+	    int pc = registers[regPC];
+
+	    blockStart = paddr;
+	    blockEnd = paddr + code.length*4;
+	    leaveBlock = false;
+	    
+	    for (int i=0; i<code.length; i++) {
+		if (registers[regPC] != pc + i*4)
+		    break;
+		
+		try {
+		    code[i].run();
+		}
+		catch (MipsException e) {
+		    blockStart = blockEnd = 0;
+		    e.handle();
+		    tick();
+		    return;
+		}
+
+		tick();
+		
+		if (leaveBlock)
+		    break;
+	    }
+
+	    blockStart = blockEnd = 0;
+	}
+
+	private int paddr;
+	private int[] words;
+	private TranslatedInstruction[] code;
+    }
+
+    /**
+     * Translate a single decoded instruction. The common integer, memory and
+     * branch instructions get their own implementation; anything else (or
+     * anything that can overflow or link) falls back to the interpreter.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	info	the decoded instruction.
+     * @return	the translated instruction.
+     */
+    private TranslatedInstruction translateInstruction(final int paddr,
+						       DecodedInstruction info) {
+	int flags = info.flags;
+	boolean immediate = Lib.test(Mips.SRC2IMM, flags);
+	boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+
+	if (!Lib.test(Mips.OVERFLOW, flags) && !Lib.test(Mips.LINK, flags)) {
+	    switch (info.operation) {
+	    case Mips.ADD:
+		if (immediate) {
+		    return new TranslatedInstruction(info) {
+			    void run() { retire(registers[rs] + imm); }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() { retire(registers[rs] + registers[rt]); }
+		    };
+		
+	    case Mips.OR:
+		if (immediate) {
+		    return new TranslatedInstruction(info) {
+			    void run() { retire(registers[rs] | imm); }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() { retire(registers[rs] | registers[rt]); }
+		    };
+		
+	    case Mips.AND:
+		if (immediate) {
+		    return new TranslatedInstruction(info) {
+			    void run() { retire(registers[rs] & imm); }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() { retire(registers[rs] & registers[rt]); }
+		    };
+		
+	    case Mips.XOR:
+		if (immediate) {
+		    return new TranslatedInstruction(info) {
+			    void run() { retire(registers[rs] ^ imm); }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() { retire(registers[rs] ^ registers[rt]); }
+		    };
+
+	    case Mips.LUI:
+		return new TranslatedInstruction(info) {
+			void run() { retire(imm << 16); }
+		    };
+
+	    case Mips.SLL:
+		if (Lib.test(Mips.SRC1SH, flags)) {
+		    return new TranslatedInstruction(info) {
+			    void run() { retire(registers[rt] << sh); }
+			};
+		}
+		break;
+
+	    case Mips.SLT:
+		if (unsigned) {
+		    return new TranslatedInstruction(info) {
+			    void run() {
+				long src1 = registers[rs] & 0xFFFFFFFFL;
+				long src2 = (flagImm ? imm : registers[rt])
+				    & 0xFFFFFFFFL;
+				retire(src1 < src2 ? 1 : 0);
+			    }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() {
+			    int src2 = flagImm ? imm : registers[rt];
+			    retire(registers[rs] < src2 ? 1 : 0);
+			}
+		    };
+
+	    case Mips.MFLO:
+		return new TranslatedInstruction(info) {
+			void run() { retire(registers[regLo]); }
+		    };
+	    case Mips.MFHI:
+		return new TranslatedInstruction(info) {
+			void run() { retire(registers[regHi]); }
+		    };
+
+	    case Mips.LOAD:
+		if (unsigned) {
+		    return new TranslatedInstruction(info) {
+			    void run() throws MipsException {
+				int value = readMem(registers[rs] + imm, size);
+				delayedLoad(dstReg, value, 0xFFFFFFFF);
+				advancePC(registers[regNextPC]+4);
+			    }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() throws MipsException {
+			    int value = readMem(registers[rs] + imm, size);
+			    delayedLoad(dstReg, Lib.extend(value, 0, size*8),
+					0xFFFFFFFF);
+			    advancePC(registers[regNextPC]+4);
+			}
+		    };
+
+	    case Mips.STORE:
+		return new TranslatedInstruction(info) {
+			void run() throws MipsException {
+			    writeMem(registers[rs] + imm, size, registers[rt]);
+			    retire();
+			}
+		    };
+
+	    case Mips.BEQ:
+		return new TranslatedInstruction(info) {
+			void run() { branch(registers[rs] == registers[rt]); }
+		    };
+	    case Mips.BNE:
+		return new TranslatedInstruction(info) {
+			void run() { branch(registers[rs] != registers[rt]); }
+		    };
+	    case Mips.BGEZ:
+		return new TranslatedInstruction(info) {
+			void run() { branch(registers[rs] >= 0); }
+		    };
+	    case Mips.BGTZ:
+		return new TranslatedInstruction(info) {
+			void run() { branch(registers[rs] > 0); }
+		    };
+	    case Mips.BLEZ:
+		return new TranslatedInstruction(info) {
+			void run() { branch(registers[rs] <= 0); }
+		    };
+	    case Mips.BLTZ:
+		return new TranslatedInstruction(info) {
+			void run() { branch(registers[rs] < 0); }
+		    };
+
+	    case Mips.JUMP:
+		if (info.format == Mips.JFMT) {
+		    return new TranslatedInstruction(info) {
+			    void run() {
+				int jtarget = (registers[regNextPC]&0xF0000000)
+				    | (target<<2);
+				finishLoad();
+				advancePC(jtarget);
+			    }
+			};
+		}
+		return new TranslatedInstruction(info) {
+			void run() {
+			    int jtarget = registers[rs];
+			    finishLoad();
+			    advancePC(jtarget);
+			}
+		    };
+	    }
+	}
+	else if (info.operation == Mips.JUMP && info.format == Mips.JFMT) {
+	    // jal
+	    return new TranslatedInstruction(info) {
+		    void run() {
+			int jtarget = (registers[regNextPC]&0xF0000000)
+			    | (target<<2);
+			int nextPC = registers[regNextPC]+4;
+			finishLoad();
+			registers[regRA] = nextPC;
+			advancePC(jtarget);
+		    }
+		};
+	}
+
+	final int value = info.value;
+	return new TranslatedInstruction(info) {
+		void run() throws MipsException {
+		    blockInstruction.paddr = paddr;
+		    blockInstruction.value = value;
+		    blockInstruction.decode();
+		    blockInstruction.execute();
+		    blockInstruction.writeBack();
+		}
+	    };
+    }
+
+    /** Used by translated instructions that fall back to the interpreter. */
+    private Instruction blockInstruction = new Instruction();
+
+    /**
+     * One instruction of a translated block, with its register numbers and
+     * immediate bound at translation time. Register operands are all read
+     * before the previous delayed load completes, as in the interpreter.
+     */
+    private abstract class TranslatedInstruction {
+	TranslatedInstruction(DecodedInstruction info) {
+	    rs = info.rs;
+	    rt = info.rt;
+	    sh = info.sh;
+	    imm = info.imm;
+	    target = info.target;
+	    size = info.size;
+	    dstReg = info.dstReg;
+	    branchOffset = info.branchOffset;
+	    flagImm = Lib.test(Mips.SRC2IMM, info.flags);
+	}
+
+	abstract void run() throws MipsException;
+
+	/** Retire an instruction that writes no register. */
+	final void retire() {
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/** Retire an instruction that writes <i>dst</i> to its destination. */
+	final void retire(int dst) {
+	    finishLoad();
+	    if (dstReg != 0)
+		registers[dstReg] = dst;
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/** Retire a conditional branch. */
+	final void branch(boolean taken) {
+	    int nextPC = registers[regNextPC] + (taken ? branchOffset : 4);
+	    finishLoad();
+	    advancePC(nextPC);
+	}
+
+	final int rs, rt, sh, imm, target, size, dstReg, branchOffset;
+	final boolean flagImm;
+    }
+
+    /**
+     * The part of a decoded instruction that depends only on the instruction
+     * word, and not on the register file.
+     */
+    private static class DecodedInstruction {
+	void decode(int value) {
+	    this.value = value;
+	    decoded = true;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	/** <tt>false</tt> until <tt>decode()</tt> has filled this entry. */
+	boolean decoded = false;
+	/** The instruction word this entry was decoded from. */
+	int value;
+
+	int op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+
+	int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -5,7 +5,8 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -40,6 +41,51 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	Lib.assertTrue(maxThreads > 0);
+
+	pool = new Worker[Config.getInteger("TCB.poolSize", 16)];
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreads();
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt>, so that TCBs can run on virtual
+     * threads. Virtual threads need a newer JVM than Nachos is built for, so
+     * this is done by reflection; on an older JVM we warn and keep using
+     * platform threads.
+     */
+    private static void findVirtualThreads() {
+	try {
+	    Method ofVirtual = Thread.class.getMethod("ofVirtual");
+	    virtualBuilder = ofVirtual.invoke(null);
+	    newVirtualThread =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    System.out.print(" (no virtual threads)");
+	    virtualBuilder = null;
+	    newVirtualThread = null;
+	}
+    }
+
+    /**
+     * Create the Java thread for a new TCB, using a virtual thread if they
+     * are enabled and available.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (newVirtualThread != null) {
+	    try {
+		return (Thread) newVirtualThread.invoke(virtualBuilder, target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
     }
     
     /**
@@ -66,7 +112,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(numRunning < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -78,34 +124,43 @@ public final class TCB {
 	    Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
 
 	/* At this point all checks are complete, so we go ahead and start the
-	 * TCB. Whether or not this is the first TCB, it gets added to
-	 * runningThreads, and we save the target closure.
+	 * TCB. Whether or not this is the first TCB, it is counted as
+	 * running, and we save the target closure.
 	 */
-	runningThreads.add(this);
+	numRunning++;
 
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, it needs a Java thread of its own.
+	     * We take an idle one from the pool if there is one, and otherwise
+	     * make a new one; creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    if (numPooled > 0) {
+		worker = pool[--numPooled];
+		pool[numPooled] = null;
+	    }
+	    else {
+		final Worker newWorker = new Worker();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    newWorker.javaThread = newJavaThread(newWorker);
+			}
+		    });
+		worker = newWorker;
+	    }
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    javaThread = worker.javaThread;
 
-	    /* The Java thread hasn't yet started, but we need to get it
+	    /* The worker isn't running this TCB yet, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
+	     * current TCB, handing this TCB to the worker, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    worker.assign(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -187,6 +242,20 @@ public final class TCB {
 	currentTCB.waitForInterrupt();
 	
 	this.javaThread = null;
+	numRunning--;
+
+	/* The doomed TCB's Java thread is now unwinding, and will go back to
+	 * its worker loop. Keep the worker for the next start() if there is
+	 * room, or else tell it to exit.
+	 */
+	if (worker != null) {
+	    if (numPooled < pool.length)
+		pool[numPooled++] = worker;
+	    else
+		worker.retire();
+
+	    worker = null;
+	}
     }
 
     /**
@@ -244,16 +313,16 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
-		privilege.exit(0);
+	    /* destroy() has already done the bookkeeping, and the TCB that
+	     * called it is running again, so there is nothing left to touch.
+	     */
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    numRunning--;
+	    if (numRunning == 0)
 		privilege.exit(1);
 	    else
 		die();
@@ -273,36 +342,38 @@ public final class TCB {
 	
 	if (done) {
 	    currentTCB.interrupt();
-	    throw new ThreadDeath();
+	    throw threadDeath;
 	}
 
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> can return spuriously, and an <tt>unpark()</tt> that
+     * comes first is not lost, so the flag is all that matters.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
+     * TCB. The thread is handed control directly, without a monitor.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,9 +399,18 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by the <tt>TCB.maxThreads</tt> configuration key, and 250
+     * by default. It is read when this class is initialized, which is after
+     * the configuration is loaded, since <tt>givePrivilege()</tt> is the
+     * first use of this class.
      */
-    public static final int maxThreads = 250;
+    private static final int maxThreads =
+	Config.getInteger("TCB.maxThreads", 250);
+
+    /** A <tt>Thread.Builder</tt> for virtual threads, if enabled. */
+    private static Object virtualBuilder = null;
+    /** <tt>Thread.Builder.unstarted()</tt>, if virtual threads are enabled. */
+    private static Method newVirtualThread = null;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -348,18 +428,30 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
-     * added only in <tt>start(Runnable)</tt>, which can only be invoked once
-     * on each TCB object. TCB objects are removed only in each of the
-     * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
-     * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-     * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * The number of <i>running</i> TCB objects: those started and not yet
+     * destroyed. It is incremented only in <tt>start(Runnable)</tt>, which
+     * can only be invoked once on each TCB object, and decremented in
+     * <tt>destroy()</tt>, or in <tt>threadroot()</tt> if the thread dies of
+     * an uncaught exception. Both are done by the current TCB, so no
+     * synchronization is needed. It is limited to <tt>maxThreads</tt> by
+     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops it to zero,
+     * Nachos exits.
+     */
+    private static int numRunning = 0;
+
+    /**
+     * Idle workers, whose Java threads are waiting for a TCB to run. Only the
+     * current TCB touches the pool. Its size is set by the
+     * <tt>TCB.poolSize</tt> configuration key, and 16 by default.
+     */
+    private static Worker[] pool = new Worker[0];
+    private static int numPooled = 0;
+
+    /**
+     * Thrown to unwind a destroyed TCB's Java thread. It is allocated once,
+     * since filling in a stack trace on every destroy is wasted work.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static final ThreadDeath threadDeath = new ThreadDeath();
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -379,16 +471,24 @@ public final class TCB {
      */
     private Thread javaThread = null;
 
+    /**
+     * The worker whose Java thread runs this TCB, or <tt>null</tt> for the
+     * first TCB, which runs on the thread that called <tt>Machine.main()</tt>
+     * and is never pooled.
+     */
+    private Worker worker = null;
+
     /**
      * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
-     * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
+     * be running. This is an entirely different condition from being counted
+     * in <tt>numRunning</tt>, which counts all TCB objects that have started
+     * and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. Volatile, since it is the only thing a waking thread
+     * synchronizes on.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +500,58 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * A Java thread that runs TCBs one after another. It waits until
+     * <tt>start()</tt> assigns it a TCB, runs it until it is destroyed, and
+     * then waits for the next one, until <tt>destroy()</tt> finds the pool
+     * full and retires it.
+     */
+    private static class Worker implements Runnable {
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = assigned) == null) {
+		    if (retired)
+			return;
+		    LockSupport.park(this);
+		}
+		assigned = null;
+
+		tcb.threadroot();
+	    }
+	}
+
+	/**
+	 * Give this worker a TCB to run, starting its Java thread the first
+	 * time.
+	 */
+	void assign(TCB tcb) {
+	    assigned = tcb;
+
+	    if (!started) {
+		started = true;
+		javaThread.start();
+	    }
+	    else {
+		LockSupport.unpark(javaThread);
+	    }
+	}
+
+	/**
+	 * Tell this worker to exit once it is idle.
+	 */
+	void retire() {
+	    retired = true;
+	    LockSupport.unpark(javaThread);
+	}
+
+	Thread javaThread;
+	private boolean started = false;
+	/** The TCB to run next. Set by the current TCB, cleared by us. */
+	private volatile TCB assigned = null;
+	private volatile boolean retired = false;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -0,0 +1,241 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A priority queue of pending interrupts, ordered by time and then by id.
+ * Events are kept in parallel primitive arrays and identified by a slot
+ * number; a slot is reused as soon as its event is removed, so scheduling an
+ * interrupt allocates nothing once the arrays have grown to the largest
+ * number of outstanding events.
+ *
+ * <p>
+ * The queue is a binary min-heap of slot numbers. Ids must be unique, so
+ * that no two events compare equal and the order is the same as that of the
+ * <tt>TreeSet</tt> this replaces.
+ */
+final class TimerHeap {
+    /**
+     * Allocate a new, empty heap.
+     *
+     * @param	capacity	the number of events to make room for
+     *				initially.
+     */
+    TimerHeap(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	heap = new int[capacity];
+	time = new long[capacity];
+	id = new long[capacity];
+	type = new String[capacity];
+	handler = new Runnable[capacity];
+
+	freeSlots = new int[capacity];
+	for (int i=0; i<capacity; i++)
+	    freeSlots[i] = capacity-1 - i;
+	numFree = capacity;
+    }
+
+    /**
+     * Add an event.
+     *
+     * @param	when	the time at which the event is due.
+     * @param	eventId	a number distinguishing events due at the same time;
+     *			smaller ids come first.
+     * @param	eventType	a name for the event.
+     * @param	eventHandler	the handler to call when the event is due.
+     */
+    void add(long when, long eventId, String eventType,
+	     Runnable eventHandler) {
+	if (numFree == 0)
+	    grow();
+
+	int slot = freeSlots[--numFree];
+	time[slot] = when;
+	id[slot] = eventId;
+	type[slot] = eventType;
+	handler[slot] = eventHandler;
+
+	siftUp(size++, slot);
+    }
+
+    /**
+     * Test whether the heap is empty.
+     *
+     * @return	<tt>true</tt> if there are no events.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of events in the heap.
+     *
+     * @return	the number of events.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Return the time of the earliest event. The heap must not be empty.
+     *
+     * @return	the time the first event is due.
+     */
+    long firstTime() {
+	return time[heap[0]];
+    }
+
+    /**
+     * Return the name of the earliest event. The heap must not be empty.
+     *
+     * @return	the type of the first event.
+     */
+    String firstType() {
+	return type[heap[0]];
+    }
+
+    /**
+     * Return the handler of the earliest event. The heap must not be empty.
+     *
+     * @return	the handler of the first event.
+     */
+    Runnable firstHandler() {
+	return handler[heap[0]];
+    }
+
+    /**
+     * Remove the earliest event, and free its slot. The heap must not be
+     * empty.
+     */
+    void removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	int slot = heap[0];
+	type[slot] = null;
+	handler[slot] = null;
+	freeSlots[numFree++] = slot;
+
+	size--;
+	if (size > 0)
+	    siftDown(0, heap[size]);
+    }
+
+    /**
+     * Return the slots of all events, earliest first. Allocates, so this is
+     * only meant for debugging output.
+     *
+     * @return	the slot numbers in order.
+     */
+    int[] slotsInOrder() {
+	int[] order = new int[size];
+
+	// insertion sort; the heap is already roughly in order
+	for (int i=0; i<size; i++) {
+	    int slot = heap[i];
+	    int j;
+	    for (j=i; j>0 && before(slot, order[j-1]); j--)
+		order[j] = order[j-1];
+	    order[j] = slot;
+	}
+
+	return order;
+    }
+
+    /**
+     * Return the time at which the event in the specified slot is due.
+     *
+     * @param	slot	a slot returned by <tt>slotsInOrder()</tt>.
+     * @return	the time of the event.
+     */
+    long time(int slot) {
+	return time[slot];
+    }
+
+    /**
+     * Return the name of the event in the specified slot.
+     *
+     * @param	slot	a slot returned by <tt>slotsInOrder()</tt>.
+     * @return	the type of the event.
+     */
+    String type(int slot) {
+	return type[slot];
+    }
+
+    private boolean before(int slot1, int slot2) {
+	if (time[slot1] != time[slot2])
+	    return time[slot1] < time[slot2];
+	else
+	    return id[slot1] < id[slot2];
+    }
+
+    private void siftUp(int i, int slot) {
+	while (i > 0) {
+	    int parent = (i-1) >> 1;
+	    if (!before(slot, heap[parent]))
+		break;
+	    heap[i] = heap[parent];
+	    i = parent;
+	}
+	heap[i] = slot;
+    }
+
+    private void siftDown(int i, int slot) {
+	int half = size >> 1;
+	while (i < half) {
+	    int child = 2*i + 1;
+	    if (child+1 < size && before(heap[child+1], heap[child]))
+		child++;
+	    if (!before(heap[child], slot))
+		break;
+	    heap[i] = heap[child];
+	    i = child;
+	}
+	heap[i] = slot;
+    }
+
+    private void grow() {
+	int oldCapacity = heap.length;
+	int capacity = oldCapacity * 2;
+
+	int[] newHeap = new int[capacity];
+	System.arraycopy(heap, 0, newHeap, 0, size);
+	heap = newHeap;
+
+	long[] newTime = new long[capacity];
+	System.arraycopy(time, 0, newTime, 0, oldCapacity);
+	time = newTime;
+
+	long[] newId = new long[capacity];
+	System.arraycopy(id, 0, newId, 0, oldCapacity);
+	id = newId;
+
+	String[] newType = new String[capacity];
+	System.arraycopy(type, 0, newType, 0, oldCapacity);
+	type = newType;
+
+	Runnable[] newHandler = new Runnable[capacity];
+	System.arraycopy(handler, 0, newHandler, 0, oldCapacity);
+	handler = newHandler;
+
+	// all old slots are in use, so only the new ones are free
+	freeSlots = new int[capacity];
+	numFree = 0;
+	for (int i=capacity-1; i>=oldCapacity; i--)
+	    freeSlots[numFree++] = i;
+    }
+
+    /** Slot numbers, in heap order. */
+    private int[] heap;
+    /** The number of events in the heap. */
+    private int size = 0;
+
+    private long[] time;
+    private long[] id;
+    private String[] type;
+    private Runnable[] handler;
+
+    /** A stack of unused slots. */
+    private int[] freeSlots;
+    private int numFree;
+}
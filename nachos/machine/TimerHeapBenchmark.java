@@ -0,0 +1,131 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * A microbenchmark comparing <tt>TimerHeap</tt> against the
+ * <tt>TreeSet</tt> of interrupt objects that <tt>Interrupt</tt> used to
+ * keep. Each run keeps a fixed number of events outstanding, and repeatedly
+ * removes the earliest one and schedules a new one a random delay later, the
+ * way devices re-arm themselves.
+ *
+ * <p>
+ * Usage: <tt>java nachos.machine.TimerHeapBenchmark [<i>ops</i>
+ * [<i>outstanding</i>...]]</tt>
+ */
+public final class TimerHeapBenchmark {
+    private TimerHeapBenchmark() {
+    }
+
+    public static void main(String[] args) {
+	int ops = 2000000;
+	int[] sizes = { 10, 100, 1000, 10000 };
+
+	if (args.length > 0)
+	    ops = Integer.parseInt(args[0]);
+	if (args.length > 1) {
+	    sizes = new int[args.length-1];
+	    for (int i=1; i<args.length; i++)
+		sizes[i-1] = Integer.parseInt(args[i]);
+	}
+
+	System.out.println("outstanding\tTreeSet ns/op\tTimerHeap ns/op");
+
+	for (int i=0; i<sizes.length; i++) {
+	    // run both once to warm up the JIT, then measure
+	    runTreeSet(sizes[i], ops);
+	    runTimerHeap(sizes[i], ops);
+
+	    long tree = runTreeSet(sizes[i], ops);
+	    long heap = runTimerHeap(sizes[i], ops);
+
+	    System.out.println(sizes[i] + "\t\t" + (tree/ops) + "\t\t" +
+			       (heap/ops));
+	}
+    }
+
+    private static long runTreeSet(int outstanding, int ops) {
+	Random random = new Random(seed);
+	TreeSet<Event> pending = new TreeSet<Event>();
+	long id = 0;
+
+	for (int i=0; i<outstanding; i++)
+	    pending.add(new Event(delay(random), id++, handler));
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<ops; i++) {
+	    Event first = pending.first();
+	    pending.remove(first);
+	    first.handler.run();
+	    pending.add(new Event(first.time + delay(random), id++, handler));
+	}
+
+	long elapsed = System.nanoTime() - start;
+	check = pending.first().time;
+	return elapsed;
+    }
+
+    private static long runTimerHeap(int outstanding, int ops) {
+	Random random = new Random(seed);
+	TimerHeap pending = new TimerHeap(16);
+	long id = 0;
+
+	for (int i=0; i<outstanding; i++)
+	    pending.add(delay(random), id++, "event", handler);
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<ops; i++) {
+	    long time = pending.firstTime();
+	    Runnable firstHandler = pending.firstHandler();
+	    pending.removeFirst();
+	    firstHandler.run();
+	    pending.add(time + delay(random), id++, "event", handler);
+	}
+
+	long elapsed = System.nanoTime() - start;
+	Lib.assertTrue(check == pending.firstTime());
+	return elapsed;
+    }
+
+    private static long delay(Random random) {
+	return 1 + random.nextInt(1000);
+    }
+
+    /** The old <tt>Interrupt.PendingInterrupt</tt>. */
+    private static class Event implements Comparable<Event> {
+	Event(long time, long id, Runnable handler) {
+	    this.time = time;
+	    this.id = id;
+	    this.handler = handler;
+	}
+
+	public int compareTo(Event e) {
+	    if (time < e.time)
+		return -1;
+	    else if (time > e.time)
+		return 1;
+	    else if (id < e.id)
+		return -1;
+	    else if (id > e.id)
+		return 1;
+	    else
+		return 0;
+	}
+
+	long time, id;
+	Runnable handler;
+    }
+
+    private static final long seed = 12345;
+    private static final Runnable handler = new Runnable() {
+	    public void run() {
+	    }
+	};
+    /** Earliest time left by the <tt>TreeSet</tt> run, to check the heap. */
+    private static long check;
+}
@@ -158,6 +158,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can pass before any pending
+	 * interrupt becomes due. Until then, nothing but the statistics would
+	 * change on a call to <tt>tick(false)</tt>.
+	 *
+	 * @return	the number of ticks that can be charged with
+	 *		<tt>advance()</tt>.
+	 */
+	public long quietTicks();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * none of which may make an interrupt due. Used to charge a run of
+	 * instructions all at once, instead of calling <tt>tick(false)</tt>
+	 * after each of them.
+	 *
+	 * @param	userTicks	the number of user ticks to charge, no more
+	 *				than the last <tt>quietTicks()</tt>.
+	 */
+	public void advance(long userTicks);
     }
 
     /**
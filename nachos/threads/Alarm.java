@@ -1,12 +1,21 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending alarms are kept in a hierarchical timing wheel: <tt>numLevels</tt>
+ * wheels of <tt>wheelSize</tt> slots each, where a slot at level <i>L</i>
+ * covers <tt>wheelSize</tt><sup><i>L</i></sup> ticks. An alarm goes into the
+ * lowest level whose range still contains its deadline, and is moved down a
+ * level each time the wheel below wraps around, until it reaches level 0,
+ * where all alarms in a slot are due at the same tick and are run together.
+ * Deadlines beyond the top level wait on an overflow list. Setting and
+ * cancelling an alarm take constant time, since each slot is an intrusive
+ * doubly-linked list.
  */
 public class Alarm {
     /**
@@ -16,24 +25,10 @@ public class Alarm {
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-	public class AlarmItem implements Comparable<AlarmItem> {
-
-		public KThread thread;
-		public long time;
-		public AlarmItem(KThread thread, long time) {
-			this.thread = thread;
-			this.time = time;
-		}
-		@Override
-		public int compareTo(AlarmItem o) {
-			if (this.time < o.time) return -1;
-			if (this.time > o.time) return 1;
-			return 0;
-		}
-	}
-	PriorityQueue<AlarmItem> alarmList = new PriorityQueue<AlarmItem> ();
-	
     public Alarm() {
+	for (int level=0; level<numLevels; level++)
+	    wheel[level] = new AlarmItem[wheelSize];
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -41,20 +36,17 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Runs the handlers
+     * of all alarms that are due, then causes the current thread to yield,
+     * forcing a context switch if there is another thread that should be
+     * run.
      */
     public void timerInterrupt() {
-    	
-    boolean intStatus = Machine.interrupt().disable();
-    while (!alarmList.isEmpty()) {
-    	AlarmItem toWake = alarmList.peek();
-    	if (toWake.time > Machine.timer().getTime()) break;
-    	toWake.thread.ready();
-    	alarmList.remove();
-    }
-    Machine.interrupt().restore(intStatus);
+	boolean intStatus = Machine.interrupt().disable();
+
+	advance(Machine.timer().getTime());
+
+	Machine.interrupt().restore(intStatus);
 	KThread.yield();
     }
 
@@ -73,14 +65,289 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	long wakeTime = Machine.timer().getTime() + x;
+	final KThread thread = KThread.currentThread();
+
 	boolean intStatus = Machine.interrupt().disable();
-	alarmList.add(new AlarmItem(KThread.currentThread(), wakeTime));
+
+	set(x, new Runnable() {
+		public void run() { thread.ready(); }
+	    });
 	KThread.sleep();
+
 	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Arrange for <i>handler</i> to be run in the first timer interrupt at
+     * least <i>x</i> ticks from now. The handler is run with interrupts
+     * disabled, from the timer interrupt handler, so it must not block; it
+     * may set or cancel alarms.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run.
+     * @return	a handle that can be used to cancel the alarm.
+     */
+    public AlarmItem set(long x, Runnable handler) {
+	Lib.assertTrue(handler != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	AlarmItem item = new AlarmItem(Machine.timer().getTime() + x, handler);
+	insert(item);
+	numPending++;
+
+	Machine.interrupt().restore(intStatus);
+	return item;
+    }
+
+    /**
+     * A pending alarm, as returned by <tt>set()</tt>.
+     */
+    public class AlarmItem {
+	private AlarmItem(long time, Runnable handler) {
+	    this.time = time;
+	    this.handler = handler;
+	}
+
+	/**
+	 * Cancel this alarm, if it has not gone off yet.
+	 *
+	 * @return	<tt>true</tt> if the alarm was cancelled, or
+	 *		<tt>false</tt> if it had already gone off or been
+	 *		cancelled.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean pending = (level != notPending);
+	    if (level == expiring) {
+		// due in the slot being run; expire() will skip it
+		level = notPending;
+	    }
+	    else if (pending) {
+		unlink(this);
+		numPending--;
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	    return pending;
+	}
+
+	/**
+	 * Return the time at which this alarm is due.
+	 *
+	 * @return	the earliest time at which the handler will run.
+	 */
+	public long getTime() {
+	    return time;
 	}
-    
+
+	private long time;
+	private Runnable handler;
+
+	/**
+	 * The level and slot this alarm is in, <tt>expiring</tt>, or
+	 * <tt>notPending</tt>.
+	 */
+	private int level = notPending, slot;
+	private AlarmItem prev, next;
+    }
+
+    /**
+     * Run every alarm due at or before <i>now</i>, moving alarms down the
+     * levels as the wheels turn.
+     */
+    private void advance(long now) {
+	if (numPending == 0) {
+	    // nothing to move down, so the wheels can just jump ahead
+	    if (current <= now)
+		current = now + 1;
+	    return;
+	}
+
+	while (current <= now) {
+	    // run the due slots of the level 0 block that current is in
+	    long end = Math.min(now, current | (wheelSize-1));
+	    int first = (int) (current & (wheelSize-1));
+	    int last = (int) (end & (wheelSize-1));
+
+	    long due = occupied[0] & (-1L << first) & (-1L >>> (63 - last));
+	    current = end + 1;
+
+	    while (due != 0) {
+		int slot = Long.numberOfTrailingZeros(due);
+		due &= due - 1;
+
+		expire(slot);
+	    }
+
+	    // when a wheel wraps around, move the next slot of the one above
+	    // down, starting at the top
+	    if ((current & (wheelSize-1)) == 0)
+		cascade();
+	}
+    }
+
+    /**
+     * Run the alarms in level 0 slot <i>slot</i>, which are all due now, in
+     * the order they were set, except those cancelled by an earlier handler.
+     */
+    private void expire(int slot) {
+	AlarmItem first = wheel[0][slot];
+	wheel[0][slot] = null;
+	occupied[0] &= ~(1L << slot);
+
+	// take the whole slot off the wheel before running any handler, so a
+	// handler cancelling a later alarm here only has to mark it
+	for (AlarmItem item=first; item != null; item=item.next) {
+	    item.level = expiring;
+	    numPending--;
+	}
+
+	AlarmItem item = first;
+	while (item != null) {
+	    AlarmItem next = item.next;
+	    boolean cancelled = (item.level == notPending);
+	    item.level = notPending;
+	    item.prev = item.next = null;
+
+	    if (!cancelled)
+		item.handler.run();
+	    item = next;
+	}
+    }
+
+    /**
+     * <tt>current</tt> just reached a multiple of <tt>wheelSize</tt>:
+     * re-insert the alarms in the slot each wheel has just reached, from the
+     * highest wheel that wrapped around down to level 1.
+     */
+    private void cascade() {
+	int top = 1;
+	while (top < numLevels &&
+	       (current & ((1L << (wheelBits*(top+1))) - 1)) == 0)
+	    top++;
+
+	if (top == numLevels) {
+	    // the top wheel wrapped around too; retry the overflow list
+	    AlarmItem item = overflow;
+	    overflow = null;
+	    reinsert(item);
+	}
+
+	for (int level=Math.min(top, numLevels-1); level>0; level--) {
+	    int slot = (int) ((current >> (wheelBits*level)) & (wheelSize-1));
+
+	    AlarmItem item = wheel[level][slot];
+	    wheel[level][slot] = null;
+	    occupied[level] &= ~(1L << slot);
+	    reinsert(item);
+	}
+    }
+
+    private void reinsert(AlarmItem item) {
+	while (item != null) {
+	    AlarmItem next = item.next;
+	    insert(item);
+	    item = next;
+	}
+    }
+
+    /**
+     * Put an alarm in the slot for its deadline, at the tail. An alarm
+     * whose deadline has passed goes in the slot for <tt>current</tt>.
+     */
+    private void insert(AlarmItem item) {
+	long time = Math.max(item.time, current);
+
+	item.prev = item.next = null;
+
+	for (int level=0; level<numLevels; level++) {
+	    int shift = wheelBits*(level+1);
+	    if ((time >> shift) == (current >> shift)) {
+		int slot = (int) ((time >> (wheelBits*level)) & (wheelSize-1));
+		item.level = level;
+		item.slot = slot;
+
+		AlarmItem head = wheel[level][slot];
+		if (head == null) {
+		    wheel[level][slot] = item;
+		    item.prev = item;
+		    occupied[level] |= 1L << slot;
+		}
+		else {
+		    // the head's prev is the tail
+		    AlarmItem tail = head.prev;
+		    tail.next = item;
+		    item.prev = tail;
+		    head.prev = item;
+		}
+		return;
+	    }
+	}
+
+	item.level = overflowLevel;
+	item.next = overflow;
+	if (overflow != null)
+	    overflow.prev = item;
+	overflow = item;
+    }
+
+    private void unlink(AlarmItem item) {
+	if (item.level == overflowLevel) {
+	    if (item.prev != null)
+		item.prev.next = item.next;
+	    else
+		overflow = item.next;
+	    if (item.next != null)
+		item.next.prev = item.prev;
+	}
+	else {
+	    AlarmItem[] slots = wheel[item.level];
+	    AlarmItem head = slots[item.slot];
+
+	    if (item == head) {
+		slots[item.slot] = item.next;
+		if (item.next != null)
+		    item.next.prev = item.prev;
+		else
+		    occupied[item.level] &= ~(1L << item.slot);
+	    }
+	    else {
+		item.prev.next = item.next;
+		if (item.next != null)
+		    item.next.prev = item.prev;
+		else
+		    head.prev = item.prev;
+	    }
+	}
+
+	item.level = notPending;
+	item.prev = item.next = null;
+    }
+
     public static void selfTest() {
-    	System.out.println(new Tests().testAlarm(50, 2000));
+	System.out.println(new Tests().testAlarm(50, 2000));
+	System.out.println(new Tests().testAlarmCancel());
     }
+
+    private static final int wheelBits = 6;
+    private static final int wheelSize = 1 << wheelBits;
+    private static final int numLevels = 4;
+
+    private static final int notPending = -1;
+    /** Taken off the wheel by <tt>expire()</tt>, but not run yet. */
+    private static final int expiring = -2;
+    private static final int overflowLevel = numLevels;
+
+    /** <tt>wheel[level][slot]</tt> is the head of a slot's list. */
+    private AlarmItem[][] wheel = new AlarmItem[numLevels][];
+    /** Bit <i>slot</i> of <tt>occupied[level]</tt> is set if it is non-empty. */
+    private long[] occupied = new long[numLevels];
+    /** Alarms too far in the future for the top wheel. */
+    private AlarmItem overflow = null;
+
+    /** The first tick not yet handled; the wheels are positioned here. */
+    private long current = 0;
+    private int numPending = 0;
 }
@@ -0,0 +1,238 @@
+package nachos.threads;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how long it takes to hand the CPU from one thread
+ * to another, in wall-clock time. It runs three workloads for each thread
+ * count listed in <tt>BenchmarkKernel.threads</tt>:
+ *
+ * <ul>
+ * <li><tt>yield</tt>: every thread calls <tt>KThread.yield()</tt> in a loop.
+ * <li><tt>semaphore</tt>: pairs of threads ping-pong through two
+ * <tt>Semaphore</tt>s.
+ * <li><tt>lock</tt>: all threads contend for one <tt>Lock</tt>, yielding while
+ * they hold it.
+ * </ul>
+ *
+ * <p>
+ * A handoff is timed from just before a thread calls a method that might
+ * block, to the moment some other thread returns from such a call. The
+ * kernel reports handoffs per second and latency percentiles, for whatever
+ * scheduler <tt>ThreadedKernel.scheduler</tt> selects; run it once per
+ * scheduler to compare them. Simulated time is not affected by anything
+ * measured here.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * Run the benchmarks, and print one line of results for each workload
+     * and thread count.
+     */
+    public void run() {
+	String schedulerName = Config.getString("ThreadedKernel.scheduler");
+	int[] counts =
+	    parseCounts(Config.getString("BenchmarkKernel.threads", "10,100"));
+	handoffs = Config.getInteger("BenchmarkKernel.handoffs", 100000);
+	Lib.assertTrue(handoffs > 0);
+
+	samples = new long[Math.min(handoffs, maxSamples)];
+
+	System.out.println();
+	System.out.println("scheduler: " + schedulerName);
+	System.out.println("test\t\tthreads\thandoffs\thandoffs/s"
+			   + "\tp50 us\tp90 us\tp99 us\tmax us");
+
+	for (int i=0; i<counts.length; i++) {
+	    report("yield", counts[i], yieldTest(counts[i]));
+	    report("semaphore", counts[i], semaphoreTest(counts[i]));
+	    report("lock", counts[i], lockTest(counts[i]));
+	}
+    }
+
+    /**
+     * Every thread yields, <tt>handoffs/n</tt> times.
+     */
+    private long yieldTest(int n) {
+	final int iterations = Math.max(1, handoffs/n);
+
+	KThread[] threads = new KThread[n];
+	for (int i=0; i<n; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<iterations; j++) {
+			    beforeBlocking();
+			    KThread.yield();
+			    afterBlocking();
+			}
+		    }
+		}).setName("yield #" + i);
+	}
+
+	return runAll(threads);
+    }
+
+    /**
+     * Pairs of threads hand a token back and forth through two semaphores.
+     */
+    private long semaphoreTest(int n) {
+	int pairs = Math.max(1, n/2);
+	final int iterations = Math.max(1, handoffs/(2*pairs));
+
+	KThread[] threads = new KThread[2*pairs];
+	for (int i=0; i<pairs; i++) {
+	    final Semaphore ping = new Semaphore(0);
+	    final Semaphore pong = new Semaphore(0);
+
+	    threads[2*i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<iterations; j++) {
+			    ping.V();
+			    beforeBlocking();
+			    pong.P();
+			    afterBlocking();
+			}
+		    }
+		}).setName("ping #" + i);
+	    threads[2*i+1] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<iterations; j++) {
+			    beforeBlocking();
+			    ping.P();
+			    afterBlocking();
+			    pong.V();
+			}
+		    }
+		}).setName("pong #" + i);
+	}
+
+	return runAll(threads);
+    }
+
+    /**
+     * All threads contend for one lock, and yield while holding it so that
+     * the others queue up behind them.
+     */
+    private long lockTest(int n) {
+	final int iterations = Math.max(1, handoffs/(2*n));
+	final Lock lock = new Lock();
+
+	KThread[] threads = new KThread[n];
+	for (int i=0; i<n; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<iterations; j++) {
+			    beforeBlocking();
+			    lock.acquire();
+			    afterBlocking();
+
+			    beforeBlocking();
+			    KThread.yield();
+			    afterBlocking();
+
+			    lock.release();
+			}
+		    }
+		}).setName("lock #" + i);
+	}
+
+	return runAll(threads);
+    }
+
+    /**
+     * Fork all the threads, wait for them to finish, and return the elapsed
+     * wall time in nanoseconds.
+     */
+    private long runAll(KThread[] threads) {
+	numSamples = 0;
+	numHandoffs = 0;
+	lastThread = null;
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	return System.nanoTime() - start;
+    }
+
+    private static void beforeBlocking() {
+	lastThread = KThread.currentThread();
+	lastTime = System.nanoTime();
+    }
+
+    private static void afterBlocking() {
+	// only count it if some other thread ran in between
+	if (lastThread == KThread.currentThread() || lastThread == null)
+	    return;
+
+	long latency = System.nanoTime() - lastTime;
+	lastThread = null;
+
+	numHandoffs++;
+	if (numSamples < samples.length)
+	    samples[numSamples++] = latency;
+    }
+
+    private void report(String test, int n, long elapsed) {
+	Arrays.sort(samples, 0, numSamples);
+
+	System.out.println(test + (test.length() < 8 ? "\t\t" : "\t") + n
+			   + "\t" + numHandoffs + "\t\t"
+			   + (long) (numHandoffs * 1e9 / elapsed) + "\t\t"
+			   + percentile(50) + "\t" + percentile(90) + "\t"
+			   + percentile(99) + "\t" + percentile(100));
+    }
+
+    private String percentile(int p) {
+	if (numSamples == 0)
+	    return "-";
+
+	int index = (int) Math.ceil(numSamples * p / 100.0) - 1;
+	long ns = samples[Math.max(0, index)];
+	return String.valueOf(ns / 1000) + "." + (ns % 1000) / 100;
+    }
+
+    private static int[] parseCounts(String list) {
+	StringTokenizer tokens = new StringTokenizer(list, ", ");
+	int[] counts = new int[tokens.countTokens()];
+
+	for (int i=0; i<counts.length; i++) {
+	    try {
+		counts[i] = Integer.parseInt(tokens.nextToken());
+	    }
+	    catch (NumberFormatException e) {
+		Lib.assertNotReached("bad BenchmarkKernel.threads: " + list);
+	    }
+	    Lib.assertTrue(counts[i] > 0);
+	}
+
+	return counts;
+    }
+
+    /** The most latencies kept for computing percentiles. */
+    private static final int maxSamples = 1 << 20;
+
+    /** Roughly how many handoffs each workload should cause. */
+    private int handoffs;
+
+    private static long[] samples;
+    private static int numSamples;
+    private static long numHandoffs;
+
+    /** The thread that last called <tt>beforeBlocking()</tt>. */
+    private static KThread lastThread;
+    /** The wall time at which it did. */
+    private static long lastTime;
+}
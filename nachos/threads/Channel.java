@@ -0,0 +1,189 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded first-in first-out buffer of 32-bit words
+ * shared by any number of sending and receiving threads. Unlike a
+ * <tt>Communicator</tt>, a sender does not wait for a receiver: it only waits
+ * while the buffer is full, and a receiver only waits while it is empty. The
+ * bulk operations move as many words as they can with each acquisition of
+ * the lock, so a producer and a consumer exchange whole runs of words for
+ * each context switch instead of one.
+ *
+ * <p>
+ * The words of a single <tt>sendAll()</tt> stay in order, but if the sender
+ * has to wait part way through, words from other senders may end up between
+ * them. The same goes for <tt>receiveAll()</tt>.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can hold.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+    }
+
+    /**
+     * Add <i>word</i> to the channel, waiting while it is full.
+     *
+     * @param	word	the integer to send.
+     */
+    public void send(int word) {
+	lock.acquire();
+
+	while (count == buffer.length) {
+	    waitingSenders++;
+	    notFull.sleep();
+	    waitingSenders--;
+	}
+
+	buffer[tail] = word;
+	tail = (tail+1 == buffer.length) ? 0 : tail+1;
+	count++;
+
+	if (waitingReceivers > 0)
+	    notEmpty.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Remove the oldest word from the channel, waiting while it is empty.
+     *
+     * @return	the integer received.
+     */
+    public int receive() {
+	lock.acquire();
+
+	while (count == 0) {
+	    waitingReceivers++;
+	    notEmpty.sleep();
+	    waitingReceivers--;
+	}
+
+	int word = buffer[head];
+	head = (head+1 == buffer.length) ? 0 : head+1;
+	count--;
+
+	if (waitingSenders > 0)
+	    notFull.wake();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Add all of <i>words</i> to the channel, in order, waiting whenever it
+     * is full.
+     *
+     * @param	words	the integers to send.
+     */
+    public void sendAll(int[] words) {
+	int offset = 0;
+
+	lock.acquire();
+
+	while (offset < words.length) {
+	    while (count == buffer.length) {
+		waitingSenders++;
+		notFull.sleep();
+		waitingSenders--;
+	    }
+
+	    // copy up to the end of the free space, or of the array, at once
+	    int n = Math.min(words.length - offset, buffer.length - count);
+	    int first = Math.min(n, buffer.length - tail);
+	    System.arraycopy(words, offset, buffer, tail, first);
+	    System.arraycopy(words, offset+first, buffer, 0, n-first);
+
+	    tail = (tail+n) % buffer.length;
+	    count += n;
+	    offset += n;
+
+	    wakeReceivers(n);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Fill <i>words</i> with words from the channel, in order, waiting
+     * whenever it is empty.
+     *
+     * @param	words	the array to receive into.
+     */
+    public void receiveAll(int[] words) {
+	int offset = 0;
+
+	lock.acquire();
+
+	while (offset < words.length) {
+	    while (count == 0) {
+		waitingReceivers++;
+		notEmpty.sleep();
+		waitingReceivers--;
+	    }
+
+	    int n = Math.min(words.length - offset, count);
+	    int first = Math.min(n, buffer.length - head);
+	    System.arraycopy(buffer, head, words, offset, first);
+	    System.arraycopy(buffer, 0, words, offset+first, n-first);
+
+	    head = (head+n) % buffer.length;
+	    count -= n;
+	    offset += n;
+
+	    wakeSenders(n);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * <i>n</i> words were added; wake enough receivers to take them.
+     */
+    private void wakeReceivers(int n) {
+	if (waitingReceivers == 0)
+	    return;
+
+	if (n == 1)
+	    notEmpty.wake();
+	else
+	    notEmpty.wakeAll();
+    }
+
+    /**
+     * <i>n</i> slots were freed; wake enough senders to fill them.
+     */
+    private void wakeSenders(int n) {
+	if (waitingSenders == 0)
+	    return;
+
+	if (n == 1)
+	    notFull.wake();
+	else
+	    notFull.wakeAll();
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	System.out.println(new Tests().testChannel(4, 1000));
+    }
+
+    private int[] buffer;
+    /** The index of the oldest word, and of the next free slot. */
+    private int head = 0, tail = 0;
+    private int count = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notFull = new Condition2(lock);
+    private Condition2 notEmpty = new Condition2(lock);
+    private int waitingSenders = 0, waitingReceivers = 0;
+}
@@ -44,6 +44,31 @@ public class Condition2 {
     	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but wake up after <i>ticks</i> clock ticks if no
+     * other thread has woken this one by then. Either way, the thread
+     * reacquires the associated lock before returning.
+     *
+     * @param	ticks	the minimum number of ticks to sleep.
+     * @return	<tt>true</tt> if another thread woke this one, or
+     *		<tt>false</tt> if the sleep timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	waitQueue.waitForAccess(KThread.currentThread());
+	TimedWait timeout = new TimedWait(waitQueue, ticks);
+	conditionLock.release();
+	KThread.sleep();
+	boolean woken = timeout.finish();
+	conditionLock.acquire();
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -75,6 +100,7 @@ public class Condition2 {
     public static void selfTest() {
     	System.out.println(new Tests().testCond1(10));
     	System.out.println(new Tests().testCond2(10));
+    	System.out.println(new Tests().testTimedWait());
     }
     
     
@@ -47,7 +47,7 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);
 
 	    currentThread = this;
@@ -321,7 +321,13 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    // skip ahead to the next interrupt, if nothing is ready
+		    Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -442,7 +448,9 @@ public class KThread {
 	
 	//new KThread(new PingTest(1)).setName("forked thread").fork();
 	//new PingTest(0).run();
-	System.out.println(new Tests().testJoin(15)); }
+	System.out.println(new Tests().testJoin(15));
+	System.out.println(new Tests().testDonationPaths());
+	System.out.println(new Tests().testStrideLockShare()); }
     private static final char dbgThread = 't';
 
     /**
@@ -18,6 +18,12 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock that nobody waits for does not use its thread queue at all: the
+ * holder is only registered with the queue, so that waiters can donate
+ * priority to it, when a second thread first tries to acquire the lock. Once
+ * a release finds no more waiters, the lock goes back to being uncontended.
  */
 public class Lock {
     /**
@@ -37,11 +43,10 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
+	    waitForAccess(thread);
 	    KThread.sleep();
 	}
 	else {
-	    waitQueue.acquire(thread);
 	    lockHolder = thread;
 	}
 
@@ -50,6 +55,43 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>acquire()</tt>, but give up if the lock cannot be acquired
+     * within <i>ticks</i> clock ticks.
+     *
+     * @param	ticks	the minimum number of ticks to wait. If it is not
+     *			positive, do not wait at all.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean acquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean acquired = true;
+
+	if (lockHolder != null) {
+	    if (ticks > 0) {
+		waitForAccess(thread);
+		TimedWait timeout = new TimedWait(waitQueue, ticks);
+		KThread.sleep();
+		acquired = timeout.finish();
+	    }
+	    else {
+		acquired = false;
+	    }
+	}
+	else {
+	    lockHolder = thread;
+	}
+
+	Lib.assertTrue(acquired == (lockHolder == thread));
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,8 +100,16 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
-	    lockHolder.ready();
+	if (contended) {
+	    // the queue hands the lock, and any donations, to the next waiter
+	    if ((lockHolder = waitQueue.nextThread()) != null)
+		lockHolder.ready();
+	    else
+		contended = false;
+	}
+	else {
+	    lockHolder = null;
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -73,7 +123,29 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Wait for the lock in its queue. If this is the first waiter since the
+     * lock was last uncontended, register the holder with the queue first,
+     * so that the waiter donates priority to it.
+     */
+    private void waitForAccess(KThread thread) {
+	if (!contended) {
+	    if (waitQueue == null)
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+	    waitQueue.acquire(lockHolder);
+	    contended = true;
+	}
+
+	waitQueue.waitForAccess(thread);
+    }
+
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    /** Created when the lock is first contended. */
+    private ThreadQueue waitQueue = null;
+    /**
+     * <tt>true</tt> if <tt>waitQueue</tt> knows who holds the lock, in which
+     * case <tt>release()</tt> must go through the queue.
+     */
+    private boolean contended = false;
 }
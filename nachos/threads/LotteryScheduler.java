@@ -187,17 +187,43 @@ public class LotteryScheduler extends Scheduler {
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
             //Remove any thread that is holding this. (?????)
-            while (!node.ne.isEmpty()) {
-                ThreadState curr = node.ne.getFirst();
+            while (node.numNe > 0) {
+                ThreadState curr = node.ne[0];
                 curr.delPrev(node);
             }
-            if (node.pr.isEmpty())
+            if (node.pr.isEmpty()) {
+                recheckCycles();
                 return null;
+            }
             ThreadState pick = pickNextThread();
             pick.acquire(this);
+            recheckCycles();
             return pick.thread;
         }
 
+        public void splitDonation(int ways) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(ways > 0);
+
+            node.ways = ways;
+            for (int i=0; i<node.numNe; i++) {
+                if (node.neDonates[i]) {
+                    node.ne[i].pr.set(node.neSlot[i], node.donation());
+                    node.ne[i].update_local();
+                }
+            }
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState state = getThreadState(thread);
+            if (state.indexOfNext(node) < 0)
+                return false;
+            node.delPrev(state);
+            recheckCycles();
+            return true;
+        }
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -222,6 +248,163 @@ public class LotteryScheduler extends Scheduler {
         public boolean transferPriority;
     }
     protected static int totalNodes = 0;
+    /** Nodes whose effective tickets still have to be recomputed. */
+    private LinkedList<ThreadState> updateWork = new LinkedList<ThreadState> ();
+    /** Marks the nodes visited by one <tt>reaches()</tt>. */
+    private long updateStamp = 0;
+    /** The nodes with an edge that does not donate. */
+    private LinkedList<ThreadState> blockedDonors = new LinkedList<ThreadState> ();
+
+    /**
+     * Let every edge that was kept from donating because it would close a
+     * cycle donate again, if it no longer would. Called whenever a node
+     * loses an edge, which can break a cycle, as when a timed wait times
+     * out. There is usually nothing to check.
+     */
+    private void recheckCycles() {
+        for (Iterator<ThreadState> i=blockedDonors.iterator(); i.hasNext(); ) {
+            ThreadState node = i.next();
+            for (int j=0; j<node.numNe; j++) {
+                ThreadState next = node.ne[j];
+                if (node.neDonates[j] || next.reaches(node))
+                    continue;
+
+                node.neDonates[j] = true;
+                node.numBlocked--;
+                next.pr.set(node.neSlot[j], node.donation());
+                next.update_local();
+            }
+            if (node.numBlocked == 0)
+                i.remove();
+        }
+    }
+
+    /**
+     * The donors of one node, with their tickets in a Fenwick tree so that
+     * the total, a change of one donor's tickets, and finding the holder of
+     * a given ticket are all O(log n). Each donor has a slot; freed slots are
+     * reused. Sums are <tt>long</tt>, so donations cannot overflow.
+     */
+    protected static class TicketTree {
+        /**
+         * Add a donor.
+         *
+         * @param	owner	the donor.
+         * @param	tickets	its effective tickets.
+         * @return	the donor's slot.
+         */
+        int add(ThreadState owner, long tickets) {
+            if (numFree == 0)
+                grow();
+
+            int slot = freeSlots[--numFree];
+            this.owner[slot] = owner;
+            size++;
+            set(slot, tickets);
+            return slot;
+        }
+
+        /**
+         * Remove the donor in the specified slot.
+         */
+        void remove(int slot) {
+            set(slot, 0);
+            owner[slot] = null;
+            freeSlots[numFree++] = slot;
+            size--;
+        }
+
+        /**
+         * Change the tickets of the donor in the specified slot.
+         */
+        void set(int slot, long tickets) {
+            long delta = tickets - weight[slot];
+            weight[slot] = tickets;
+            total += delta;
+            for (int i=slot+1; i<=capacity; i+=(i & -i))
+                tree[i] += delta;
+        }
+
+        /**
+         * Return the tickets of the donor in the specified slot.
+         */
+        long get(int slot) {
+            return weight[slot];
+        }
+
+        long total() {
+            return total;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Return the donor holding the specified ticket, counting tickets
+         * from 0 in slot order.
+         *
+         * @param	ticket	a ticket less than <tt>total()</tt>.
+         */
+        ThreadState find(long ticket) {
+            Lib.assertTrue(ticket >= 0 && ticket < total);
+
+            int pos = 0;
+            for (int step=Integer.highestOneBit(capacity); step>0; step>>=1) {
+                if (pos+step <= capacity && tree[pos+step] <= ticket) {
+                    pos += step;
+                    ticket -= tree[pos];
+                }
+            }
+            return owner[pos];
+        }
+
+        /**
+         * Return some donor, or <tt>null</tt> if there are none. Used when
+         * no donor has any tickets.
+         */
+        ThreadState any() {
+            for (int i=0; i<capacity; i++) {
+                if (owner[i] != null)
+                    return owner[i];
+            }
+            return null;
+        }
+
+        private void grow() {
+            int oldCapacity = capacity;
+            capacity = Math.max(4, capacity*2);
+
+            ThreadState[] newOwner = new ThreadState[capacity];
+            long[] newWeight = new long[capacity];
+            System.arraycopy(owner, 0, newOwner, 0, oldCapacity);
+            System.arraycopy(weight, 0, newWeight, 0, oldCapacity);
+            owner = newOwner;
+            weight = newWeight;
+
+            // rebuild the tree in O(n)
+            tree = new long[capacity+1];
+            for (int i=1; i<=capacity; i++) {
+                tree[i] += weight[i-1];
+                int parent = i + (i & -i);
+                if (parent <= capacity)
+                    tree[parent] += tree[i];
+            }
+
+            freeSlots = new int[capacity];
+            numFree = 0;
+            for (int i=capacity-1; i>=oldCapacity; i--)
+                freeSlots[numFree++] = i;
+        }
+
+        private int capacity = 0, size = 0, numFree = 0;
+        private long total = 0;
+        private ThreadState[] owner = new ThreadState[0];
+        private long[] weight = new long[0];
+        /** 1-based Fenwick tree over <tt>weight</tt>. */
+        private long[] tree = new long[1];
+        private int[] freeSlots = new int[0];
+    }
     
     // the only change from PriorityQueue is to change the content of currentMax(), 
     protected class ThreadState implements Comparable<ThreadState>{
@@ -246,88 +429,170 @@ public class LotteryScheduler extends Scheduler {
                 donateTicket = queue.transferPriority;
             }
             
-            public int currentMax() {
-                int ret = ticket;
-                if (pr.isEmpty())
-                    return ret;
-                ThreadState cur;
-                for (Iterator<ThreadState> iter = pr.iterator();iter.hasNext();){
-                	cur = iter.next();
-                	//System.out.println("	cur: " + cur.toString());
-                	//System.out.println("	ret: " + ret + "+" + cur.current);
-                    ret += cur.current;
-                }
-                return ret;
+            public long currentMax() {
+                return ticket + pr.total();
+            }
+
+            /**
+             * Return the tickets this node passes on along a donating edge:
+             * all of them, or for a queue whose donations are split among
+             * several holders, its share.
+             */
+            long donation() {
+                return current / ways;
             }
             
+            /**
+             * Hold a lottery among the donors, weighted by their effective
+             * tickets. O(log n).
+             */
             public ThreadState lotteryChoose () {
-            	if (pr.isEmpty()) 
-            		return null;
-            	int totalticket = 0;
-            	ThreadState cur;
-                for (Iterator<ThreadState> iter = pr.iterator();iter.hasNext();){
-                	cur = iter.next();
-                    totalticket += cur.current;
-                }
-                
-                int rand = (int) ( Math.random() * totalticket );
+            	long totalticket = pr.total();
+            	if (totalticket == 0) 
+            		return pr.any();
                 
-                totalticket = 0;
-                for (Iterator<ThreadState> iter = pr.iterator();iter.hasNext();){
-                	cur = iter.next();
-                    totalticket += cur.current;
-                    if (totalticket >= rand)
-                    	return cur;
-                }
-                
-                Lib.assertTrue(false);
-                return null;
+                long rand = (long) ( Math.random() * totalticket );
+                return pr.find(rand);
             }
             
             @Override
             public int compareTo(ThreadState o) {
                 if (current != o.current)
-                    return current - o.current;
+                    return current < o.current ? -1 : 1;
                 return nodeId - o.nodeId;
             }
-            
-            public void update(ThreadState prev) {
-                if (!donateTicket)
-                    return;
-                int newMax = currentMax();
-                if (newMax != current) {
-                    current = newMax;
-                	for (Iterator<ThreadState> iter = ne.iterator();iter.hasNext();) {
-                        ThreadState cur = iter.next();
-                         cur.update(this);
+    	
+            /**
+             * Recompute the effective tickets of this node, and push any
+             * change on to the nodes it donates to, without recursion. A
+             * node is queued again whenever one of its donors changes after
+             * it was recomputed, so that a node reached along several paths
+             * is not left with a stale total. Tickets are summed, so around a
+             * cycle they would grow forever; an edge that would close one
+             * carries only the donor's own tickets (see <tt>addPrev()</tt>),
+             * so this ends.
+             */
+            public void update_local() {
+                ThreadState node = this;
+
+                while (true) {
+                    node.queued = false;
+                    long newMax = node.currentMax();
+
+                    if (node.donateTicket && newMax != node.current) {
+                        node.current = newMax;
+                        for (int i=0; i<node.numNe; i++) {
+                            ThreadState next = node.ne[i];
+                            long tickets =
+                                node.neDonates[i] ? node.donation() : node.ticket;
+                            if (next.pr.get(node.neSlot[i]) == tickets)
+                                continue;
+
+                            next.pr.set(node.neSlot[i], tickets);
+                            if (!next.queued) {
+                                next.queued = true;
+                                updateWork.add(next);
+                            }
+                        }
                     }
+
+                    if (updateWork.isEmpty())
+                        break;
+                    node = updateWork.removeFirst();
                 }
             }
-    	
-            public void update_local() {
-                if (!donateTicket)
-                    return;
-                int newMax = currentMax();
-                if (newMax != current) {
-                    current = newMax;
-                    for (Iterator<ThreadState> iter = ne.iterator();iter.hasNext();) {
-                        ThreadState cur = iter.next();
-                        cur.update(this);
+
+            /**
+             * Return <tt>true</tt> if this node passes tickets on, directly
+             * or through other nodes, to <i>target</i>.
+             */
+            private boolean reaches(ThreadState target) {
+                ThreadState node = this;
+                long stamp = ++updateStamp;
+                node.stamp = stamp;
+
+                // updateWork is empty outside update_local(); walk on it
+                while (true) {
+                    if (node == target) {
+                        updateWork.clear();
+                        return true;
+                    }
+
+                    if (node.donateTicket) {
+                        for (int i=0; i<node.numNe; i++) {
+                            ThreadState next = node.ne[i];
+                            if (node.neDonates[i] && next.stamp != stamp) {
+                                next.stamp = stamp;
+                                updateWork.add(next);
+                            }
+                        }
                     }
+
+                    if (updateWork.isEmpty())
+                        return false;
+                    node = updateWork.removeFirst();
                 }
             }
-    	
+
+            /**
+             * Make <i>node</i> a donor of this node. If this node already
+             * passes tickets on to <i>node</i>, as when a timed wait closes a
+             * cycle, <i>node</i> gives only its own tickets and does not pass
+             * on what it is donated, until the cycle is broken.
+             */
             public void addPrev(ThreadState node) {
-                pr.add(node);
-                node.ne.add(this);
+                boolean donates = !reaches(node);
+                int slot = pr.add(node, donates ? node.donation() : node.ticket);
+                node.addNext(this, slot, donates);
+                if (!donates && node.numBlocked++ == 0)
+                    blockedDonors.add(node);
                 update_local();
             }
             
             public void delPrev(ThreadState node) {
-                pr.remove(node);
-                node.ne.remove(this);
+                int i = node.indexOfNext(this);
+                if (i < 0)
+                    return;
+                pr.remove(node.neSlot[i]);
+                node.removeNext(i);
                 update_local();
             }
+
+            private void addNext(ThreadState next, int slot, boolean donates) {
+                if (numNe == ne.length) {
+                    ThreadState[] newNe = new ThreadState[numNe*2];
+                    int[] newSlot = new int[numNe*2];
+                    boolean[] newDonates = new boolean[numNe*2];
+                    System.arraycopy(ne, 0, newNe, 0, numNe);
+                    System.arraycopy(neSlot, 0, newSlot, 0, numNe);
+                    System.arraycopy(neDonates, 0, newDonates, 0, numNe);
+                    ne = newNe;
+                    neSlot = newSlot;
+                    neDonates = newDonates;
+                }
+                ne[numNe] = next;
+                neSlot[numNe] = slot;
+                neDonates[numNe] = donates;
+                numNe++;
+            }
+
+            private int indexOfNext(ThreadState next) {
+                for (int i=0; i<numNe; i++) {
+                    if (ne[i] == next)
+                        return i;
+                }
+                return -1;
+            }
+
+            private void removeNext(int i) {
+                if (!neDonates[i] && --numBlocked == 0)
+                    blockedDonors.remove(this);
+                numNe--;
+                System.arraycopy(ne, i+1, ne, i, numNe-i);
+                System.arraycopy(neSlot, i+1, neSlot, i, numNe-i);
+                System.arraycopy(neDonates, i+1, neDonates, i, numNe-i);
+                ne[numNe] = null;
+            }
             
             @Override
             public String toString() {
@@ -344,12 +609,14 @@ public class LotteryScheduler extends Scheduler {
             }
 
     	/**
-    	 * Return the effective priority of the associated thread.
+    	 * Return the effective priority of the associated thread. Donated
+    	 * tickets can add up to more than an <tt>int</tt> holds, in which
+    	 * case this is clamped to <tt>Integer.MAX_VALUE</tt>.
     	 *
     	 * @return	the effective priority of the associated thread.
     	 */
             public int getEffectivePriority() {
-                return current;
+                return (int) Math.min(current, Integer.MAX_VALUE);
             }
 
     	/**
@@ -395,14 +662,33 @@ public class LotteryScheduler extends Scheduler {
             public void acquire(LotteryQueue waitQueue) {
                 ThreadState tar = waitQueue.node;
                 tar.delPrev(this);
-                Lib.assertTrue(tar.ne.isEmpty());
+                Lib.assertTrue(tar.numNe == 0);
                 this.addPrev(tar);
           
             }
 
-            public int nodeId, current;
-            protected LinkedList<ThreadState> pr = new LinkedList<ThreadState> ();
-            protected LinkedList<ThreadState> ne = new LinkedList<ThreadState> ();
+            public int nodeId;
+            /** Effective tickets: our own plus everything donated to us. */
+            public long current;
+            /** The last <tt>updateStamp</tt> that visited this node. */
+            long stamp = 0;
+            /** <tt>true</tt> while this node is in <tt>updateWork</tt>. */
+            boolean queued = false;
+            /** The tickets of the nodes donating to this one. */
+            protected TicketTree pr = new TicketTree();
+            /** The nodes this one donates to, and its slot in each's tree. */
+            protected ThreadState[] ne = new ThreadState[1];
+            protected int[] neSlot = new int[1];
+            /**
+             * <tt>false</tt> for an edge that would close a cycle, until
+             * the cycle is broken.
+             */
+            protected boolean[] neDonates = new boolean[1];
+            /** The number of this node's edges that do not donate. */
+            int numBlocked = 0;
+            /** The number of holders a queue node's donations are split among. */
+            int ways = 1;
+            protected int numNe = 0;
     	/** The thread with which this object is associated. */	   
             protected KThread thread;
     	/** The queue associated with this node. */
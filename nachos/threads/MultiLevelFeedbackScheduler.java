@@ -0,0 +1,335 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of several
+ * levels; a queue always gives access to a thread at the highest level
+ * (level 0) that has one, and threads at the same level are served first-come
+ * first-serve.
+ *
+ * <p>
+ * A thread's level is decided by how it has used the CPU:
+ *
+ * <ul>
+ * <li>Every thread starts at level 0.
+ * <li>Each level has a quantum, which doubles at every level down. The CPU
+ * time a thread uses while at a level is added up from the moment the ready
+ * queue picks it until it gives up the processor, whether it yields (for
+ * example, to the timer interrupt) or blocks. Once the total reaches the
+ * quantum, the thread moves down a level.
+ * <li>A thread that was blocked and is put back on the ready queue by some
+ * other thread, for example when I/O it waited for completes, moves up a
+ * level.
+ * <li>Every <tt>boostInterval</tt> ticks, all threads go back to level 0, so
+ * that CPU-bound threads cannot starve.
+ * </ul>
+ *
+ * <p>
+ * CPU-bound threads thus sink to the lower levels, while interactive threads,
+ * which block after short bursts, stay near the top and run soon after they
+ * are woken. The number of levels, the quantum of level 0, and the boost
+ * interval are read from <tt>MultiLevelFeedbackScheduler.levels</tt>,
+ * <tt>MultiLevelFeedbackScheduler.quantum</tt>, and
+ * <tt>MultiLevelFeedbackScheduler.boostInterval</tt>. Priority is not
+ * transferred.
+ *
+ * <p>
+ * Only the ready queue keeps these accounts. Other queues, such as those of
+ * locks and semaphores, order their waiters by level but change no level:
+ * waiting on or being taken off one of them says nothing about how a thread
+ * uses the processor.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MultiLevelFeedbackScheduler() {
+	numLevels = Config.getInteger("MultiLevelFeedbackScheduler.levels", 4);
+	Lib.assertTrue(numLevels > 0 && numLevels < 32);
+
+	quantum = new long[numLevels];
+	quantum[0] = Config.getInteger("MultiLevelFeedbackScheduler.quantum",
+				       1000);
+	Lib.assertTrue(quantum[0] > 0);
+	for (int i=1; i<numLevels; i++)
+	    quantum[i] = quantum[i-1] * 2;
+
+	boostInterval =
+	    Config.getInteger("MultiLevelFeedbackScheduler.boostInterval",
+			      50000);
+	Lib.assertTrue(boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new multi-level queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue, which charges threads for the CPU time they
+     * use and moves them between levels.
+     *
+     * @return	a new multi-level ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new MultiLevelQueue(true);
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>levels-1</tt> at
+     * level 0, down to 0 at the lowest level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels-1 - getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Start a new boost epoch if <tt>boostInterval</tt> ticks have passed
+     * since the last one. Threads and queues notice the new epoch lazily.
+     */
+    private void checkBoost(long now) {
+	if (now - lastBoost >= boostInterval) {
+	    lastBoost = now;
+	    boostEpoch++;
+	}
+    }
+
+    private int numLevels;
+    private long[] quantum;
+    private long boostInterval;
+
+    private long lastBoost = 0;
+    private int boostEpoch = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue(boolean readyQueue) {
+	    this.readyQueue = readyQueue;
+	    levels = new ArrayList<LinkedList<ThreadState>>(numLevels);
+	    for (int i=0; i<numLevels; i++)
+		levels.add(new LinkedList<ThreadState>());
+	    epoch = boostEpoch;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long now = Machine.timer().getTime();
+	    checkBoost(now);
+	    boost();
+
+	    ThreadState state = getThreadState(thread);
+	    if (readyQueue) {
+		if (thread == KThread.currentThread())
+		    state.charge(now);
+		else
+		    state.readied();
+	    }
+
+	    levels.get(state.getLevel()).add(state);
+	    size++;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return null;
+
+	    long now = Machine.timer().getTime();
+	    checkBoost(now);
+	    boost();
+
+	    // the current thread is giving up the processor; if it is
+	    // blocking rather than yielding, it has not been charged yet
+	    if (readyQueue)
+		getThreadState(KThread.currentThread()).charge(now);
+
+	    for (int i=0; i<numLevels; i++) {
+		if (!levels.get(i).isEmpty()) {
+		    ThreadState state = levels.get(i).removeFirst();
+		    size--;
+
+		    if (readyQueue)
+			state.picked(now);
+		    return state.thread;
+		}
+	    }
+
+	    Lib.assertNotReached();
+	    return null;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    for (int i=0; i<numLevels; i++) {
+		if (levels.get(i).remove(state)) {
+		    size--;
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(size == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		System.out.print("[" + i + "]");
+		for (Iterator<ThreadState> j=levels.get(i).iterator(); j.hasNext(); )
+		    System.out.print(" " + j.next().thread);
+		System.out.print(" ");
+	    }
+	}
+
+	/**
+	 * If a boost is due, move every waiting thread to level 0, keeping
+	 * them in level order.
+	 */
+	private void boost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+
+	    for (int i=1; i<numLevels; i++) {
+		levels.get(0).addAll(levels.get(i));
+		levels.get(i).clear();
+	    }
+	    for (Iterator<ThreadState> i=levels.get(0).iterator(); i.hasNext(); )
+		i.next().getLevel();
+	}
+
+	/** <tt>true</tt> if this is the ready queue. */
+	private boolean readyQueue;
+	private ArrayList<LinkedList<ThreadState>> levels;
+	private int size = 0;
+	/** The boost epoch this queue last caught up with. */
+	private int epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and the CPU time it has
+     * used at that level.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = boostEpoch;
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it to level
+	 * 0 if there has been a boost since it was last looked at.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/**
+	 * Called when the ready queue picks the associated thread to run.
+	 */
+	void picked(long now) {
+	    burstStart = now;
+	}
+
+	/**
+	 * Called when the associated thread gives up the CPU. Charge it for
+	 * the time since it was picked, and move it down a level if it has
+	 * used up its quantum. Charging it again before it is next picked
+	 * changes nothing.
+	 */
+	void charge(long now) {
+	    getLevel();
+
+	    if (burstStart >= 0)
+		used += now - burstStart;
+	    burstStart = -1;
+
+	    if (used >= quantum[level]) {
+		if (level < numLevels-1)
+		    level++;
+		used = 0;
+	    }
+	}
+
+	/**
+	 * Called when some other thread puts the associated thread on the
+	 * ready queue: it was blocked, so move it up a level.
+	 */
+	void readied() {
+	    getLevel();
+
+	    if (level > 0) {
+		level--;
+		used = 0;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread; 0 is the highest. */
+	protected int level = 0;
+	/** The CPU time the thread has used at its current level. */
+	protected long used = 0;
+	/** When the thread was last picked, or -1 if it has been charged. */
+	private long burstStart = -1;
+	/** The boost epoch this state last caught up with. */
+	private int epoch;
+    }
+}
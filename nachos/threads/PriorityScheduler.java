@@ -34,6 +34,16 @@ public class PriorityScheduler extends Scheduler {
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+        trace = SchedulerTrace.create();
+    }
+
+    /**
+     * Print the recent scheduler events, if tracing is enabled with the
+     * <tt>q</tt> debug flag.
+     */
+    public void dumpTrace() {
+        if (trace != null)
+            trace.dump();
     }
     
     /**
@@ -188,10 +198,21 @@ public class PriorityScheduler extends Scheduler {
             if (node.pr.isEmpty())
                 return null;
             ThreadState pick = pickNextThread();
+            if (trace != null)
+                trace.record(SchedulerTrace.eventPick, node.nodeId, pick.nodeId, pick.current);
             pick.acquire(this);
             return pick.thread;
         }
 
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState state = getThreadState(thread);
+            if (!state.ne.contains(node))
+                return false;
+            node.delPrev(state);
+            return true;
+        }
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -226,6 +247,12 @@ public class PriorityScheduler extends Scheduler {
         public boolean transferPriority;
     }
     protected static int totalNodes = 0;
+    /** Recent scheduler events, or <tt>null</tt> if not tracing. */
+    private SchedulerTrace trace;
+    /** Source of <tt>ThreadState.seq</tt> numbers. */
+    private long nextSeq = 0;
+    /** Nodes whose effective priority still has to be recomputed. */
+    private LinkedList<ThreadState> updateWork = new LinkedList<ThreadState> ();
     
     /**
      * The scheduling state of a thread. This should include the thread's
@@ -250,6 +277,7 @@ public class PriorityScheduler extends Scheduler {
         }
         public ThreadState(PriorityQueue queue) {
             this.queue = queue;
+            nodeId = totalNodes++;
             setPriority(priorityMinimum - 1);
             donatePriority = queue.transferPriority;
         }
@@ -260,61 +288,76 @@ public class PriorityScheduler extends Scheduler {
                 return ret;
         }
         
+        /**
+         * Return the donor with the highest effective priority, the one that
+         * has been waiting longest among several. O(log n), since the donors
+         * are kept in that order.
+         */
         public ThreadState maxPrev() {
         	if (pr.isEmpty()) return null;
-            ThreadState ret = pr.getFirst();
-            for (Iterator<ThreadState> iter = pr.iterator();iter.hasNext();) {
-                ThreadState cur = iter.next();
-                if (cur.current > ret.current)
-                    ret = cur;
-                else if (cur.current == ret.current){
-                	if (ret.ne.contains(cur))
-                		ret = cur;
-                }
-            }
-            return ret;
+            return pr.first();
         }
         
+        /**
+         * Order donors by effective priority, highest first, and then by how
+         * long they have been waiting.
+         */
         @Override
         public int compareTo(ThreadState o) {
             if (current != o.current)
-                return current - o.current;
-            return nodeId - o.nodeId;
-        }
-        
-        public void update(ThreadState prev) {
-        	if (!donatePriority) return;
-            int newMax = currentMax();
-            if (newMax != current) {
-                current = newMax;
-            	for (Iterator<ThreadState> iter = ne.iterator();iter.hasNext();) {
-                    ThreadState cur = iter.next();
-                    cur.update(this);
-                }
-            }
+                return o.current - current;
+            if (seq != o.seq)
+                return seq < o.seq ? -1 : 1;
+            return 0;
         }
 	
+        /**
+         * Recompute the effective priority of this node, and push any change
+         * on to the nodes it donates to. Propagation stops wherever the
+         * effective priority does not actually change, and long donation
+         * chains are walked with a worklist instead of recursion.
+         */
         public void update_local() {
-        	if (!donatePriority) return;
-            int newMax = currentMax();
-            if (newMax != current) {
-                current = newMax;
-                for (Iterator<ThreadState> iter = ne.iterator();iter.hasNext();) {
-                    ThreadState cur = iter.next();
-                    cur.update(this);
+            ThreadState node = this;
+
+            while (true) {
+                int newMax = node.currentMax();
+
+                if (node.donatePriority && newMax != node.current) {
+                    // a node's key can only change while it is out of the
+                    // donor sets that are ordered by it
+                    for (Iterator<ThreadState> iter = node.ne.iterator();iter.hasNext();)
+                        iter.next().pr.remove(node);
+                    node.current = newMax;
+                    if (trace != null)
+                        trace.record(SchedulerTrace.eventPriority, node.nodeId, -1, newMax);
+                    for (Iterator<ThreadState> iter = node.ne.iterator();iter.hasNext();) {
+                        ThreadState next = iter.next();
+                        next.pr.add(node);
+                        updateWork.add(next);
+                    }
                 }
+
+                if (updateWork.isEmpty())
+                    break;
+                node = updateWork.removeFirst();
             }
         }
 	
         public void addPrev(ThreadState node) {
-        	System.out.println("Adding link:" + node + "->" + this);
+        	if (trace != null)
+        	    trace.record(SchedulerTrace.eventLink, node.nodeId, nodeId, node.current);
+        	// waiting order counts from when the node first starts donating
+        	if (node.ne.isEmpty())
+        	    node.seq = nextSeq++;
             pr.add(node);
             node.ne.add(this);
             update_local();
         }
         
         public void delPrev(ThreadState node) {
-        	System.out.println("Removing link:" + node + "->" + this);
+        	if (trace != null)
+        	    trace.record(SchedulerTrace.eventUnlink, node.nodeId, nodeId, node.current);
             
             pr.remove(node);
             node.ne.remove(this);
@@ -394,7 +437,10 @@ public class PriorityScheduler extends Scheduler {
         }
 
         int nodeId, current;
-        protected LinkedList<ThreadState> pr = new LinkedList<ThreadState> ();
+        /** When this node started waiting, for FIFO order among equals. */
+        long seq;
+        /** The nodes donating to this one, in <tt>compareTo()</tt> order. */
+        protected TreeSet<ThreadState> pr = new TreeSet<ThreadState> ();
         protected LinkedList<ThreadState> ne = new LinkedList<ThreadState> ();
 	/** The thread with which this object is associated. */	   
         protected KThread thread;
@@ -0,0 +1,298 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held by any number of readers at once, or by
+ * a single writer. There are four operations:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for
+ * the lock, then hold it as a reader.
+ * <li><tt>releaseRead()</tt>: stop holding the lock as a reader.
+ * <li><tt>acquireWrite()</tt>: wait until nobody holds the lock, then hold
+ * it as the writer.
+ * <li><tt>releaseWrite()</tt>: stop holding the lock as the writer.
+ * </ul>
+ *
+ * <p>
+ * New readers wait while a writer is waiting, so a stream of readers cannot
+ * starve writers. When a writer releases the lock, all the readers waiting
+ * at that moment are let in together, ahead of the next writer, so writers
+ * cannot starve readers either. Among waiting writers, and among waiting
+ * readers, the scheduler decides the order.
+ *
+ * <p>
+ * Every waiting thread donates priority to every thread holding the lock. To
+ * do this through the scheduler, each holder gets a thread queue of its own,
+ * which it owns and all the waiters wait on; the queue is only created once
+ * somebody has to wait for that holder. Where the scheduler adds donations up,
+ * as lottery and stride scheduling do, each of these queues passes on an
+ * equal share (see <tt>ThreadQueue.splitDonation()</tt>), so that the readers
+ * together get each waiter's tickets once. As with <tt>Lock</tt>, only a
+ * thread holding the lock may release it.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically wait until the lock can be shared, and hold it as a reader.
+     * The current thread must not already hold this lock.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(findHolder(thread) == null);
+
+	if (writer == null && numWaitingWriters == 0) {
+	    addHolder(thread);
+	    numReaders++;
+	}
+	else {
+	    numWaitingReaders++;
+	    waitFor(thread, readQueue);
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop holding the lock as a reader. The current thread must hold it as
+     * a reader.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread);
+	removeHolder(thread);
+
+	numReaders--;
+	if (numReaders == 0)
+	    admit(false);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until nobody holds the lock, and hold it as the writer.
+     * The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(findHolder(thread) == null);
+
+	if (writer == null && numReaders == 0) {
+	    addHolder(thread);
+	    writer = thread;
+	}
+	else {
+	    numWaitingWriters++;
+	    waitFor(thread, writeQueue);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop holding the lock as the writer. The current thread must hold it
+     * as the writer.
+     */
+    public void releaseWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer == thread);
+	removeHolder(thread);
+
+	writer = null;
+	admit(true);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock as the writer.
+     *
+     * @return	true if the current thread holds this lock as the writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock, as a reader or as the
+     * writer.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean held = (findHolder(KThread.currentThread()) != null);
+
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * The lock has just become free. Let in the next thread or threads:
+     * after a writer, all waiting readers if there are any; otherwise the
+     * next writer, or failing that, all waiting readers.
+     */
+    private void admit(boolean afterWrite) {
+	Lib.assertTrue(writer == null && numReaders == 0 && holders.isEmpty());
+
+	if (numWaitingWriters > 0 && !(afterWrite && numWaitingReaders > 0)) {
+	    KThread thread = writeQueue.nextThread();
+	    Lib.assertTrue(thread != null);
+
+	    numWaitingWriters--;
+	    stopWaiting(thread);
+	    addHolder(thread);
+	    writer = thread;
+	    thread.ready();
+	}
+	else {
+	    KThread thread;
+	    while ((thread = readQueue.nextThread()) != null) {
+		numWaitingReaders--;
+		stopWaiting(thread);
+		addHolder(thread);
+		numReaders++;
+		thread.ready();
+	    }
+	    Lib.assertTrue(numWaitingReaders == 0);
+	}
+
+	// whoever is still waiting now waits for the new holders
+	for (Iterator<KThread> i=waiting.iterator(); i.hasNext(); ) {
+	    KThread waiter = i.next();
+	    for (Iterator<Holder> j=holders.iterator(); j.hasNext(); )
+		donations(j.next()).waitForAccess(waiter);
+	}
+    }
+
+    /**
+     * Wait in <i>queue</i>, and donate to every holder.
+     */
+    private void waitFor(KThread thread, ThreadQueue queue) {
+	queue.waitForAccess(thread);
+	waiting.add(thread);
+
+	for (Iterator<Holder> i=holders.iterator(); i.hasNext(); )
+	    donations(i.next()).waitForAccess(thread);
+    }
+
+    private void stopWaiting(KThread thread) {
+	waiting.remove(thread);
+    }
+
+    private void addHolder(KThread thread) {
+	holders.add(new Holder(thread));
+	splitDonations();
+    }
+
+    /**
+     * Stop <i>thread</i> holding the lock, and take back what the waiters
+     * donated to it.
+     */
+    private void removeHolder(KThread thread) {
+	Holder holder = findHolder(thread);
+	Lib.assertTrue(holder != null);
+
+	holders.remove(holder);
+
+	if (holder.donations != null) {
+	    for (Iterator<KThread> i=waiting.iterator(); i.hasNext(); )
+		holder.donations.remove(i.next());
+
+	    // release the empty queue, so the scheduler forgets the owner
+	    Lib.assertTrue(holder.donations.nextThread() == null);
+	}
+
+	splitDonations();
+    }
+
+    /**
+     * Return the donation queue of <i>holder</i>, creating it the first
+     * time.
+     */
+    private ThreadQueue donations(Holder holder) {
+	if (holder.donations == null) {
+	    holder.donations = ThreadedKernel.scheduler.newThreadQueue(true);
+	    holder.donations.acquire(holder.thread);
+	    holder.donations.splitDonation(holders.size());
+	}
+	return holder.donations;
+    }
+
+    /**
+     * Share the waiters' donations equally among the holders.
+     */
+    private void splitDonations() {
+	for (Iterator<Holder> i=holders.iterator(); i.hasNext(); ) {
+	    Holder holder = i.next();
+	    if (holder.donations != null)
+		holder.donations.splitDonation(holders.size());
+	}
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	System.out.println(new Tests().testReadWrite(20));
+	System.out.println(new Tests().testReadWriteDonation());
+    }
+
+    private Holder findHolder(KThread thread) {
+	for (Iterator<Holder> i=holders.iterator(); i.hasNext(); ) {
+	    Holder holder = i.next();
+	    if (holder.thread == thread)
+		return holder;
+	}
+	return null;
+    }
+
+    /**
+     * A thread holding the lock, and the queue through which waiters donate
+     * priority to it.
+     */
+    private static class Holder {
+	Holder(KThread thread) {
+	    this.thread = thread;
+	}
+
+	KThread thread;
+	ThreadQueue donations = null;
+    }
+
+    /** The threads holding the lock. */
+    private LinkedList<Holder> holders = new LinkedList<Holder>();
+    private KThread writer = null;
+    private int numReaders = 0;
+
+    /** All waiting threads, readers and writers. */
+    private LinkedList<KThread> waiting = new LinkedList<KThread>();
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private int numWaitingReaders = 0;
+    private int numWaitingWriters = 0;
+}
@@ -52,6 +52,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the ready queue, the queue of threads waiting for the
+     * processor. By default this is just a queue that does not transfer
+     * priority; a scheduler that treats the processor differently from
+     * other resources can override this.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -0,0 +1,119 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A bounded, in-memory trace of scheduler events: links added to and removed
+ * from the donation graph, effective priority changes, and the threads a
+ * queue picks. Events go into a ring buffer of primitive arrays, so recording
+ * one never allocates or does I/O; once the buffer is full, the oldest events
+ * are overwritten. Call <tt>dump()</tt> to print what is left.
+ *
+ * <p>
+ * Tracing is enabled with the <tt>q</tt> debug flag. Schedulers get a trace
+ * from <tt>create()</tt>, which returns <tt>null</tt> when tracing is off, and
+ * only record when it is not <tt>null</tt>, so a disabled trace costs a single
+ * comparison.
+ */
+public class SchedulerTrace {
+    /**
+     * Return a new trace if the <tt>q</tt> debug flag is set, or
+     * <tt>null</tt> otherwise. The number of events kept is read from
+     * <tt>SchedulerTrace.capacity</tt>.
+     *
+     * @return	a new trace, or <tt>null</tt>.
+     */
+    public static SchedulerTrace create() {
+	if (!Lib.test(dbgQueue))
+	    return null;
+
+	return new SchedulerTrace(Config.getInteger("SchedulerTrace.capacity",
+						    defaultCapacity));
+    }
+
+    /**
+     * Allocate a new trace holding the specified number of events.
+     *
+     * @param	capacity	the number of most recent events to keep.
+     */
+    public SchedulerTrace(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	time = new long[capacity];
+	event = new int[capacity];
+	node1 = new int[capacity];
+	node2 = new int[capacity];
+	value = new int[capacity];
+    }
+
+    /**
+     * Record an event. Interrupts must be disabled.
+     *
+     * @param	type	the kind of event, one of the <tt>event*</tt>
+     *			constants.
+     * @param	from	the id of the node the event is about.
+     * @param	to	the id of the other node involved, or -1.
+     * @param	priority	the priority the event carries.
+     */
+    public void record(int type, int from, int to, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int i = (int) (numRecorded % time.length);
+	time[i] = Machine.timer().getTime();
+	event[i] = type;
+	node1[i] = from;
+	node2[i] = to;
+	value[i] = priority;
+
+	numRecorded++;
+    }
+
+    /**
+     * Print the events still in the buffer, oldest first.
+     */
+    public void dump() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	long first = Math.max(0, numRecorded - time.length);
+
+	System.out.println("Scheduler trace: " + (numRecorded - first) +
+			   " of " + numRecorded + " events");
+
+	for (long n=first; n<numRecorded; n++) {
+	    int i = (int) (n % time.length);
+	    String line = "  " + time[i] + "\t" + eventNames[event[i]] + "\t#" +
+		node1[i];
+	    if (node2[i] >= 0)
+		line += " -> #" + node2[i];
+	    System.out.println(line + "\tpriority " + value[i]);
+	}
+
+	System.out.println("  (end of trace)");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** A node started donating to another: a wait or a holder link. */
+    public static final int eventLink = 0;
+    /** A node stopped donating to another. */
+    public static final int eventUnlink = 1;
+    /** A node's effective priority changed. */
+    public static final int eventPriority = 2;
+    /** A queue chose the next thread to run or to own it. */
+    public static final int eventPick = 3;
+
+    private static final String[] eventNames = {
+	"link", "unlink", "priority", "pick"
+    };
+
+    private static final int defaultCapacity = 4096;
+    private static final char dbgQueue = 'q';
+
+    private long[] time;
+    private int[] event;
+    private int[] node1, node2;
+    private int[] value;
+
+    /** Total number of events recorded, including overwritten ones. */
+    private long numRecorded = 0;
+}
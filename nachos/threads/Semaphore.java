@@ -48,6 +48,38 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>P()</tt>, but give up if the semaphore does not become
+     * non-zero within <i>ticks</i> clock ticks.
+     *
+     * @param	ticks	the minimum number of ticks to wait. If it is not
+     *			positive, do not wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean tryP(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean decremented = true;
+
+	if (value == 0) {
+	    if (ticks > 0) {
+		waitQueue.waitForAccess(KThread.currentThread());
+		TimedWait timeout = new TimedWait(waitQueue, ticks);
+		KThread.sleep();
+		decremented = timeout.finish();
+	    }
+	    else {
+		decremented = false;
+	    }
+	}
+	else {
+	    value--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -0,0 +1,633 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that chooses threads using stride scheduling, a deterministic
+ * form of proportional-share scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and over time each thread gets a share of picks in
+ * proportion to its tickets. Instead of holding a lottery, each thread has a
+ * <i>pass</i> value, and the thread with the lowest pass is picked next;
+ * whenever the ready queue picks a thread, its pass advances by its
+ * <i>stride</i>, which is inversely proportional to its tickets. Other
+ * queues, such as those of locks, order their waiters by pass too but do not
+ * advance it, since being given a lock is not a share of the processor. The
+ * same sequence of calls always gives the same sequence of picks.
+ *
+ * <p>
+ * Each queue keeps its own virtual time, the pass of the thread it picked
+ * last. A thread that starts waiting is given at least that pass, so a
+ * thread that has been blocked for a long time cannot come back and
+ * monopolize the queue.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins as with the lottery
+ * scheduler: a thread's effective tickets are its own plus those of every
+ * thread waiting on a queue it holds. A thread may wait on several queues at
+ * once, and then donates along each of them, so a holder it reaches along
+ * several paths gets its tickets once per path.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, the only queue whose picks advance a
+     * thread's pass.
+     *
+     * @return	a new stride ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StrideQueue(false, true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketMinimum &&
+		       priority <= ticketMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int ticketDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. A thread with <i>n</i>
+     * effective tickets has stride <tt>strideScale/</tt><i>n</i>, or 1 if
+     * that would be 0, so shares are exact up to this many tickets.
+     */
+    public static final long strideScale = 1L << 30;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Add <i>delta</i> to the effective tickets of <i>state</i>, and pass
+     * the change on through every queue it donates to, without recursion.
+     * A thread that gets tickets from <i>state</i> along several paths gets
+     * the change once along each, just as it got the tickets, or its share
+     * of it where a queue splits its donations. No donating edge ever
+     * closes a cycle (see <tt>donatesTo()</tt>), so this ends.
+     */
+    private void donate(ThreadState state, long delta) {
+	if (delta == 0)
+	    return;
+
+	Lib.assertTrue(numPending == 0);
+
+	while (true) {
+	    state.effective += delta;
+
+	    ThreadState next = null;
+	    long nextDelta = 0;
+	    for (Iterator<Entry> i=state.waiting.iterator(); i.hasNext(); ) {
+		Entry entry = i.next();
+		if (!entry.donates)
+		    continue;
+
+		StrideQueue queue = entry.queue;
+		long before = queue.donation();
+		queue.waitTotal += delta;
+		long passed = queue.donation() - before;
+
+		if (queue.transferPriority && queue.holder != null &&
+		    passed != 0) {
+		    // usually there is just one; stack any others
+		    if (next == null) {
+			next = queue.holder;
+			nextDelta = passed;
+		    }
+		    else {
+			pushDonation(queue.holder, passed);
+		    }
+		}
+	    }
+
+	    if (next != null) {
+		delta = nextDelta;
+	    }
+	    else {
+		if (numPending == 0)
+		    return;
+		numPending--;
+		next = pendingState[numPending];
+		delta = pendingDelta[numPending];
+		pendingState[numPending] = null;
+	    }
+	    state = next;
+	}
+    }
+
+    /**
+     * Return <tt>true</tt> if <i>from</i> donates, directly or through other
+     * threads, to <i>to</i>. Every thread <i>from</i> donates to is marked
+     * with the new <tt>donateStamp</tt> on the way, unless <i>to</i> is found
+     * first; with <i>to</i> <tt>null</tt>, all of them are.
+     *
+     * <p>
+     * A thread must not start donating to a thread that donates to it, or
+     * <tt>donate()</tt> would go round the cycle forever: the edge is kept,
+     * but does not donate.
+     */
+    private boolean donatesTo(ThreadState from, ThreadState to) {
+	long stamp = ++donateStamp;
+
+	// the pending stack is free outside donate(); walk depth first on it
+	Lib.assertTrue(numPending == 0);
+	from.stamp = stamp;
+
+	for (ThreadState state = from; ; ) {
+	    if (state == to) {
+		while (numPending > 0)
+		    pendingState[--numPending] = null;
+		return true;
+	    }
+
+	    for (Iterator<Entry> i=state.waiting.iterator(); i.hasNext(); ) {
+		Entry entry = i.next();
+		StrideQueue queue = entry.queue;
+
+		if (entry.donates && queue.transferPriority &&
+		    queue.holder != null && queue.holder.stamp != stamp) {
+		    queue.holder.stamp = stamp;
+		    pushDonation(queue.holder, 0);
+		}
+	    }
+
+	    if (numPending == 0)
+		return false;
+	    state = pendingState[--numPending];
+	    pendingState[numPending] = null;
+	}
+    }
+
+    /**
+     * Let every entry that was kept from donating because it would close a
+     * cycle donate again, if it no longer would. Called whenever a thread
+     * stops waiting or a queue loses its holder, either of which can break
+     * a cycle, as when a timed wait times out. There is usually nothing to
+     * check.
+     */
+    private void recheckCycles() {
+	for (Iterator<Entry> i=blocked.iterator(); i.hasNext(); ) {
+	    Entry entry = i.next();
+	    StrideQueue queue = entry.queue;
+	    ThreadState state = entry.state;
+
+	    if (queue.holder != null && donatesTo(queue.holder, state))
+		continue;
+
+	    i.remove();
+	    entry.donates = true;
+	    queue.addWaiting(state.effective);
+	}
+    }
+
+    private void pushDonation(ThreadState state, long delta) {
+	if (numPending == pendingState.length) {
+	    ThreadState[] newState = new ThreadState[numPending*2];
+	    long[] newDelta = new long[numPending*2];
+	    System.arraycopy(pendingState, 0, newState, 0, numPending);
+	    System.arraycopy(pendingDelta, 0, newDelta, 0, numPending);
+	    pendingState = newState;
+	    pendingDelta = newDelta;
+	}
+	pendingState[numPending] = state;
+	pendingDelta[numPending] = delta;
+	numPending++;
+    }
+
+    /**
+     * Donations still to be passed on, when a thread waits on several; also
+     * the stack for <tt>donatesTo()</tt>.
+     */
+    private ThreadState[] pendingState = new ThreadState[4];
+    private long[] pendingDelta = new long[4];
+    private int numPending = 0;
+
+    /** The entries of transferring queues that do not donate. */
+    private LinkedList<Entry> blocked = new LinkedList<Entry>();
+    /** Source of <tt>Entry.seq</tt> numbers. */
+    private long nextSeq = 0;
+    /** Marks the threads visited by one walk of the donation graph. */
+    private long donateStamp = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that picks the waiting thread with the lowest
+     * pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority, boolean readyQueue) {
+	    this.transferPriority = transferPriority;
+	    this.readyQueue = readyQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (holder != null)
+		holder.release(this);
+
+	    if (waiters.isEmpty()) {
+		recheckCycles();
+		return null;
+	    }
+
+	    Entry entry = waiters.first();
+	    ThreadState state = entry.state;
+
+	    state.stopWaiting(entry);
+
+	    // move virtual time up to the pick, and if the thread is to run,
+	    // charge it for the pick
+	    virtualTime = entry.pass;
+	    if (readyQueue)
+		state.pass = Math.max(state.pass, entry.pass) + state.stride();
+
+	    state.acquire(this);
+	    recheckCycles();
+	    return state.thread;
+	}
+
+	public void splitDonation(int ways) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(ways > 0);
+
+	    long before = donation();
+	    this.ways = ways;
+	    if (transferPriority && holder != null)
+		donate(holder, donation() - before);
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    for (Iterator<Entry> i=state.waiting.iterator(); i.hasNext(); ) {
+		Entry entry = i.next();
+		if (entry.queue == this) {
+		    state.stopWaiting(entry);
+		    recheckCycles();
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	/**
+	 * Return the tickets this queue passes on to its holder: its share of
+	 * <tt>waitTotal</tt>.
+	 */
+	long donation() {
+	    return waitTotal / ways;
+	}
+
+	/**
+	 * Add <i>delta</i> to <tt>waitTotal</tt>, and pass the change in this
+	 * queue's donation on to the holder.
+	 */
+	void addWaiting(long delta) {
+	    long before = donation();
+	    waitTotal += delta;
+	    if (transferPriority && holder != null)
+		donate(holder, donation() - before);
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (waiters.isEmpty())
+		return null;
+
+	    return waiters.first().state;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    System.out.print("holder " + (holder == null ? null : holder.thread)
+			     + ", vt " + virtualTime + ":");
+	    for (Iterator<Entry> i=waiters.iterator(); i.hasNext(); ) {
+		Entry entry = i.next();
+		System.out.print(" " + entry.state.thread + " (pass " +
+				 entry.pass + ", " + entry.state.effective +
+				 " tickets)");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** <tt>true</tt> if this is the ready queue. */
+	private boolean readyQueue;
+	/** The waiting threads, in the order they will be picked. */
+	private TreeSet<Entry> waiters = new TreeSet<Entry>();
+	/** The sum of the effective tickets of the donating waiters. */
+	private long waitTotal = 0;
+	/** The number of holders this queue's donations are split among. */
+	private int ways = 1;
+	/** The thread that last acquired this queue, if any. */
+	private ThreadState holder = null;
+	/** The pass of the last thread picked. */
+	private long virtualTime = 0;
+    }
+
+    /**
+     * A thread waiting on a queue. The key is fixed when the thread starts
+     * waiting, so a thread can wait on several queues at once.
+     */
+    private class Entry implements Comparable<Entry> {
+	Entry(ThreadState state, StrideQueue queue, long pass) {
+	    this.state = state;
+	    this.queue = queue;
+	    this.pass = pass;
+	    this.seq = nextSeq++;
+	}
+
+	public int compareTo(Entry e) {
+	    if (pass != e.pass)
+		return pass < e.pass ? -1 : 1;
+	    else if (seq != e.seq)
+		return seq < e.seq ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	ThreadState state;
+	StrideQueue queue;
+	long pass, seq;
+	/**
+	 * <tt>false</tt> if this thread's tickets are not counted in the
+	 * queue's <tt>waitTotal</tt>, because donating them would close a
+	 * cycle. With timed waits, a cycle is not necessarily a deadlock, and
+	 * once it is broken the entry donates again.
+	 */
+	boolean donates = true;
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its pass, the queues
+     * it holds and the queues it is waiting on.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.tickets = ticketDefault;
+	    this.effective = ticketDefault;
+	}
+
+	/**
+	 * Return the number of tickets of the associated thread.
+	 *
+	 * @return	the tickets of the associated thread.
+	 */
+	public int getPriority() {
+	    return tickets;
+	}
+
+	/**
+	 * Return the effective number of tickets of the associated thread,
+	 * including donations, clamped to <tt>Integer.MAX_VALUE</tt>.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(effective, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    long delta = (long) priority - tickets;
+	    tickets = priority;
+	    donate(this, delta);
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified queue.
+	 *
+	 * @param	queue	the queue that the associated thread is now
+	 *			waiting on.
+	 */
+	public void waitForAccess(StrideQueue queue) {
+	    Entry entry = new Entry(this, queue,
+				    Math.max(pass, queue.virtualTime));
+	    queue.waiters.add(entry);
+	    waiting.add(entry);
+
+	    if (queue.transferPriority && queue.holder != null &&
+		donatesTo(queue.holder, this)) {
+		entry.donates = false;
+		blocked.add(entry);
+		return;
+	    }
+
+	    queue.addWaiting(effective);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>queue</tt>, either through <tt>acquire()</tt> or
+	 * <tt>nextThread()</tt>.
+	 *
+	 * @param	queue	the queue that was acquired.
+	 */
+	public void acquire(StrideQueue queue) {
+	    Lib.assertTrue(queue.holder == null);
+
+	    queue.holder = this;
+	    held.add(queue);
+
+	    if (!queue.transferPriority)
+		return;
+
+	    // if this thread is itself waiting, a waiter it donates to would
+	    // now close a cycle; stop that waiter donating here
+	    if (!waiting.isEmpty()) {
+		donatesTo(this, null);
+		for (Iterator<Entry> i=queue.waiters.iterator(); i.hasNext(); ) {
+		    Entry entry = i.next();
+		    if (entry.donates && entry.state.stamp == donateStamp) {
+			entry.donates = false;
+			blocked.add(entry);
+			queue.waitTotal -= entry.state.effective;
+		    }
+		}
+	    }
+
+	    donate(this, queue.donation());
+	}
+
+	/**
+	 * Give up <tt>queue</tt>, which this thread holds.
+	 */
+	void release(StrideQueue queue) {
+	    Lib.assertTrue(queue.holder == this);
+
+	    queue.holder = null;
+	    held.remove(queue);
+
+	    if (queue.transferPriority)
+		donate(this, -queue.donation());
+	}
+
+	/**
+	 * Stop waiting in the queue of the specified entry.
+	 */
+	void stopWaiting(Entry entry) {
+	    StrideQueue queue = entry.queue;
+
+	    queue.waiters.remove(entry);
+	    waiting.remove(entry);
+
+	    if (!entry.donates) {
+		blocked.remove(entry);
+		return;
+	    }
+
+	    queue.addWaiting(-effective);
+	}
+
+	long stride() {
+	    return Math.max(1, strideScale / effective);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets;
+	/** Own tickets plus all tickets donated to this thread. */
+	protected long effective;
+	/** This thread's pass: where it stands in line. */
+	protected long pass = 0;
+	/** The queues this thread holds. */
+	protected LinkedList<StrideQueue> held = new LinkedList<StrideQueue>();
+	/** This thread's entries in the queues it is waiting on. */
+	protected LinkedList<Entry> waiting = new LinkedList<Entry>();
+	/** The last <tt>donateStamp</tt> that marked this thread. */
+	private long stamp = 0;
+    }
+}
@@ -1,20 +1,28 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Iterator;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is kept in a growable circular array, so adding an object does
+ * not allocate once the array is large enough. A consumer is only woken when
+ * there is an object for it: each object added wakes at most one waiting
+ * thread, and a thread that has already been woken but has not run yet is
+ * not woken again.
  */
 public class SynchList {
     /**
      * Allocate a new synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	items = new Object[initialCapacity];
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
     }
 
     /**
@@ -25,10 +33,27 @@ public class SynchList {
      */
     public void add(Object o) {
 	Lib.assertTrue(o != null);
-	
+
+	lock.acquire();
+	append(o);
+	wakeConsumers(1);
+	lock.release();
+    }
+
+    /**
+     * Add all the objects in <i>c</i> to the end of the queue, in iteration
+     * order, waking up to one waiting thread for each.
+     *
+     * @param	c	the objects to add. None may be <tt>null</tt>.
+     */
+    public void addAll(Collection<?> c) {
 	lock.acquire();
-	list.add(o);
-	listEmpty.wake();
+	for (Iterator<?> i=c.iterator(); i.hasNext(); ) {
+	    Object o = i.next();
+	    Lib.assertTrue(o != null);
+	    append(o);
+	}
+	wakeConsumers(c.size());
 	lock.release();
     }
 
@@ -42,29 +67,107 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0) {
+	    numSleeping++;
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	}
+	o = take();
 	lock.release();
 
 	return o;
     }
+
+    /**
+     * Remove an object from the front of the queue if there is one.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue is empty.
+     */
     public Object removeFirstNoWait() {
+	// nothing can preempt us between here and the return, so an empty
+	// queue needs no lock
+	if (count == 0)
+	    return null;
+
     	Object o;
 
     	lock.acquire();
-    	if (list.isEmpty()) o = null;
-    	else o = list.removeFirst();
+    	if (count == 0) o = null;
+    	else o = take();
     	lock.release();
 
     	return o;
     }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue, without
+     * blocking, and add them to <i>c</i> in order.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the maximum number of objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	if (count == 0 || max <= 0)
+	    return 0;
+
+	lock.acquire();
+	int n = Math.min(count, max);
+	for (int i=0; i<n; i++)
+	    c.add(take());
+	lock.release();
+
+	return n;
+    }
+
+    /**
+     * Return the number of objects in the queue.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Wake up to <i>n</i> of the threads sleeping in <tt>removeFirst()</tt>.
+     */
+    private void wakeConsumers(int n) {
+	for (; n > 0 && numSleeping > 0; n--) {
+	    numSleeping--;
+	    listEmpty.wake();
+	}
+    }
+
+    private void append(Object o) {
+	if (count == items.length) {
+	    // grow, unwrapping the queue to the start of the new array
+	    Object[] grown = new Object[items.length * 2];
+	    int first = items.length - head;
+	    System.arraycopy(items, head, grown, 0, first);
+	    System.arraycopy(items, 0, grown, first, head);
+	    items = grown;
+	    head = 0;
+	}
+
+	items[(head + count) & (items.length-1)] = o;
+	count++;
+    }
+
+    private Object take() {
+	Object o = items[head];
+	items[head] = null;
+	head = (head+1) & (items.length-1);
+	count--;
+	return o;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
@@ -88,10 +191,18 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	System.out.println(new Tests().testSynchList(4, 100));
     }
 
-    private LinkedList<Object> list;
+    /** The initial array size; always a power of two. */
+    private static final int initialCapacity = 8;
+
+    private Object[] items;
+    /** The index of the first object, and the number of objects. */
+    private int head = 0, count = 0;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
+    /** The number of threads sleeping in <tt>removeFirst()</tt> and not yet woken. */
+    private int numSleeping = 0;
 }
-
@@ -352,6 +352,491 @@ public class Tests {
 		return "Alarm Test ended, N = " + n + " Int = " + interval + ", please check the results";
 		*/
 	}
+	/**
+	 * Testing Alarm.AlarmItem.cancel() from a handler: of alarms due at the
+	 * same tick, the first cancels a later one, which must not run while
+	 * the rest still do, whether or not it is the last in its slot.
+	 */
+	public String testAlarmCancel() {
+		final boolean[] ran = new boolean[5];
+		final boolean[] cancelled = new boolean[2];
+		final Alarm.AlarmItem[] items = new Alarm.AlarmItem[5];
+
+		boolean intStatus = Machine.interrupt().disable();
+		// 0 cancels 1, which is last in its slot
+		items[0] = ThreadedKernel.alarm.set(1000, new Runnable() {
+			public void run() { ran[0] = true; cancelled[0] = items[1].cancel(); }
+		});
+		items[1] = ThreadedKernel.alarm.set(1000, new Runnable() {
+			public void run() { ran[1] = true; }
+		});
+		// 2 cancels 3, which has 4 after it
+		items[2] = ThreadedKernel.alarm.set(3000, new Runnable() {
+			public void run() { ran[2] = true; cancelled[1] = items[3].cancel(); }
+		});
+		items[3] = ThreadedKernel.alarm.set(3000, new Runnable() {
+			public void run() { ran[3] = true; }
+		});
+		items[4] = ThreadedKernel.alarm.set(3000, new Runnable() {
+			public void run() { ran[4] = true; }
+		});
+		Machine.interrupt().restore(intStatus);
+
+		ThreadedKernel.alarm.waitUntil(5000);
+
+		if (!ran[0] || !ran[2] || !ran[4]) return "an alarm did not go off";
+		if (ran[1] || ran[3]) return "a cancelled alarm went off";
+		if (!cancelled[0] || !cancelled[1]) return "cancel() from a handler failed";
+		for (int i = 0; i < items.length; i++)
+			if (items[i].cancel()) return "alarm " + i + " still pending";
+
+		// the alarm must still work afterwards
+		long start = Machine.timer().getTime();
+		ThreadedKernel.alarm.waitUntil(1000);
+		if (Machine.timer().getTime() - start < 1000) return "alarm broken after cancel";
+		return "Alarm Cancel Test passed";
+	}
+	/**
+	 * Testing Semaphore.tryP(), Lock.acquire(long) and
+	 * Condition2.sleepFor(): each must time out when nobody helps, not
+	 * before the timeout, and must succeed when another thread helps in
+	 * time.
+	 */
+	public String testTimedWait() {
+		final Semaphore sem = new Semaphore(0);
+		final Lock lock = new Lock();
+		final Condition2 cond = new Condition2(lock);
+
+		long start = Machine.timer().getTime();
+		if (sem.tryP(1000)) return "tryP did not time out";
+		if (Machine.timer().getTime() - start < 1000) return "tryP timed out early";
+
+		KThread helper = new KThread(new Runnable() {
+			@Override
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(500);
+				sem.V();
+			}
+		}).setName("(timed) V");
+		helper.fork();
+		if (!sem.tryP(100000)) return "tryP timed out despite V()";
+		helper.join();
+
+		final Semaphore held = new Semaphore(0);
+		helper = new KThread(new Runnable() {
+			@Override
+			public void run() {
+				lock.acquire();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(5000);
+				lock.release();
+			}
+		}).setName("(timed) holder");
+		helper.fork();
+		held.P();
+		if (lock.acquire(1000)) return "acquire did not time out";
+		if (!lock.acquire(100000)) return "acquire timed out despite release()";
+		lock.release();
+		helper.join();
+
+		lock.acquire();
+		if (cond.sleepFor(1000)) return "sleepFor did not time out";
+		if (!lock.isHeldByCurrentThread()) return "sleepFor lost the lock";
+		helper = new KThread(new Runnable() {
+			@Override
+			public void run() {
+				lock.acquire();
+				cond.wake();
+				lock.release();
+			}
+		}).setName("(timed) waker");
+		helper.fork();
+		if (!cond.sleepFor(100000)) return "sleepFor timed out despite wake()";
+		lock.release();
+		helper.join();
+
+		return "Timed wait test passed";
+	}
+	/**
+	 * Testing the ReadWriteLock class.
+	 * Generates n threads, every fourth of them a writer, that take the
+	 * lock repeatedly and yield while holding it. A writer must never see
+	 * anyone else inside, and a reader must never see a writer.
+	 */
+	public String testReadWrite(int n) {
+		final ReadWriteLock rw = new ReadWriteLock();
+		final int[] inside = new int[2]; // readers, writers
+		final String[] error = new String[1];
+		LinkedList<KThread> tlist = new LinkedList<KThread> ();
+		for (int i = 0; i < n; i++) {
+			final boolean writer = (i % 4 == 0);
+			tlist.add(new KThread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 20; j++) {
+						if (writer) {
+							rw.acquireWrite();
+							inside[1]++;
+							if (inside[0] != 0 || inside[1] != 1) error[0] = "Writer not alone";
+							KThread.yield();
+							inside[1]--;
+							rw.releaseWrite();
+						}
+						else {
+							rw.acquireRead();
+							inside[0]++;
+							if (inside[1] != 0) error[0] = "Reader saw a writer";
+							KThread.yield();
+							inside[0]--;
+							rw.releaseRead();
+						}
+						KThread.yield();
+					}
+				}
+			}).setName("(rw) #" + i));
+		}
+		for (int i = 0; i < n; i++) tlist.get(i).fork();
+		for (int i = 0; i < n; i++) tlist.get(i).join();
+		if (error[0] != null) return error[0];
+		return "ReadWriteLock Test passed, N = " + n;
+	}
+	/**
+	 * Testing priority donation through a ReadWriteLock.
+	 * Three readers hold the lock while a writer, and then a reader behind
+	 * it, wait. Every reader holding the lock must get the waiters'
+	 * priority, as the readers leave one by one. Under lottery and stride,
+	 * the waiters' tickets are shared equally among the readers holding the
+	 * lock, so that they are not counted once per reader.
+	 */
+	public String testReadWriteDonation() {
+		Scheduler sched = ThreadedKernel.scheduler;
+		boolean shared;
+		if (sched instanceof PriorityScheduler) shared = false;
+		else if (sched instanceof LotteryScheduler || sched instanceof StrideScheduler) shared = true;
+		else return "ReadWriteLock donation test skipped";
+
+		final ReadWriteLock rw = new ReadWriteLock();
+		final Semaphore held = new Semaphore(0);
+		Semaphore[] done = new Semaphore[3];
+		KThread[] readers = new KThread[3];
+		for (int i = 0; i < 3; i++) {
+			final Semaphore release = done[i] = new Semaphore(0);
+			readers[i] = new KThread(new Runnable() {
+				@Override
+				public void run() {
+					rw.acquireRead();
+					held.V();
+					release.P();
+					rw.releaseRead();
+				}
+			}).setName("(rw donation) reader #" + i);
+			readers[i].fork();
+		}
+		for (int i = 0; i < 3; i++) held.P();
+
+		KThread writer = new KThread(new Runnable() {
+			@Override
+			public void run() {
+				rw.acquireWrite();
+				rw.releaseWrite();
+			}
+		}).setName("(rw donation) writer");
+		KThread late = new KThread(new Runnable() {
+			@Override
+			public void run() {
+				rw.acquireRead();
+				rw.releaseRead();
+			}
+		}).setName("(rw donation) late reader");
+		boolean intStatus = Machine.interrupt().disable();
+		sched.setPriority(writer, 6);
+		sched.setPriority(late, 3);
+		Machine.interrupt().restore(intStatus);
+		writer.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+		late.fork();
+		ThreadedKernel.alarm.waitUntil(100);
+
+		String error = null;
+		for (int round = 0; round < 3 && error == null; round++) {
+			int holding = 3 - round;
+			int boosted = shared ? 1 + (6 + 3) / holding : 6;
+			intStatus = Machine.interrupt().disable();
+			for (int i = round; i < 3; i++) {
+				int p = sched.getEffectivePriority(readers[i]);
+				if (p != boosted && error == null)
+					error = readers[i] + " has priority " + p + " with "
+						+ holding + " readers holding, not " + boosted;
+			}
+			Machine.interrupt().restore(intStatus);
+			if (error != null) break;
+
+			done[round].V();
+			readers[round].join();
+			done[round] = null;
+		}
+		for (int i = 0; i < 3; i++) {
+			if (done[i] != null) {
+				done[i].V();
+				readers[i].join();
+			}
+		}
+		writer.join();
+		late.join();
+
+		if (error != null) return error;
+		return "ReadWriteLock donation test passed";
+	}
+	/**
+	 * Testing the Channel class.
+	 * A sender pushes 0..n-1 through a channel of the given capacity, mixing
+	 * send() and sendAll() of varying lengths, while a receiver mixes
+	 * receive() and receiveAll(); the words must arrive in order. Then two
+	 * senders and two receivers share one channel, and nothing may be lost.
+	 */
+	public String testChannel(int capacity, final int n) {
+		final Channel chan = new Channel(capacity);
+		KThread sender = new KThread(new Runnable() {
+			@Override
+			public void run() {
+				int next = 0;
+				for (int len = 1; next < n; len = len % 7 + 1) {
+					if (len == 1 || next + len > n) {
+						chan.send(next++);
+						continue;
+					}
+					int[] words = new int[len];
+					for (int j = 0; j < len; j++) words[j] = next++;
+					chan.sendAll(words);
+				}
+			}
+		}).setName("(chan) sender");
+		sender.fork();
+		int expected = 0;
+		for (int len = 1; expected < n; len = len % 5 + 1) {
+			if (len == 1 || expected + len > n) {
+				int word = chan.receive();
+				if (word != expected) return "Received " + word + " instead of " + expected;
+				expected++;
+				continue;
+			}
+			int[] words = new int[len];
+			chan.receiveAll(words);
+			for (int j = 0; j < len; j++, expected++)
+				if (words[j] != expected) return "Received " + words[j] + " instead of " + expected;
+		}
+		sender.join();
+
+		final long[] sum = new long[1];
+		LinkedList<KThread> tlist = new LinkedList<KThread> ();
+		for (int i = 0; i < 2; i++) {
+			final int base = i * n;
+			tlist.add(new KThread(new Runnable() {
+				@Override
+				public void run() {
+					int[] words = new int[n / 2];
+					for (int j = 0; j < words.length; j++) words[j] = base + j;
+					chan.sendAll(words);
+					for (int j = words.length; j < n; j++) chan.send(base + j);
+				}
+			}).setName("(chan) sender #" + i));
+			final boolean bulk = (i == 0);
+			tlist.add(new KThread(new Runnable() {
+				@Override
+				public void run() {
+					if (bulk) {
+						int[] words = new int[n];
+						chan.receiveAll(words);
+						for (int j = 0; j < n; j++) sum[0] += words[j];
+					}
+					else {
+						for (int j = 0; j < n; j++) {
+							int word = chan.receive();
+							sum[0] += word;
+						}
+					}
+				}
+			}).setName("(chan) receiver #" + i));
+		}
+		for (int i = 0; i < tlist.size(); i++) tlist.get(i).fork();
+		for (int i = 0; i < tlist.size(); i++) tlist.get(i).join();
+		long total = (long) (2 * n) * (2 * n - 1) / 2;
+		if (sum[0] != total) return "Sum of words received is " + sum[0] + " instead of " + total;
+		return "Channel Test passed, capacity = " + capacity + ", N = " + n;
+	}
+	/**
+	 * Testing the SynchList class.
+	 * k consumers block in removeFirst() while the main thread feeds n
+	 * objects through add() and addAll(); every object must be taken
+	 * exactly once. Then the list is made to wrap around and grow, and
+	 * drainTo() must return the objects in order.
+	 */
+	public String testSynchList(int k, final int n) {
+		final SynchList list = new SynchList();
+		final boolean[] seen = new boolean[n];
+		final String[] error = new String[1];
+		LinkedList<KThread> tlist = new LinkedList<KThread> ();
+		for (int i = 0; i < k; i++) {
+			final int count = n / k + (i < n % k ? 1 : 0);
+			tlist.add(new KThread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < count; j++) {
+						int o = (Integer) list.removeFirst();
+						if (seen[o]) error[0] = "Object " + o + " taken twice";
+						seen[o] = true;
+					}
+				}
+			}).setName("(synchlist) consumer #" + i));
+		}
+		for (int i = 0; i < k; i++) tlist.get(i).fork();
+		LinkedList<Object> batch = new LinkedList<Object> ();
+		for (int i = 0; i < n; i++) {
+			if (i % 3 == 0) {
+				list.add(i);
+				KThread.yield();
+				continue;
+			}
+			batch.add(i);
+			if (batch.size() == 5 || i == n - 1) {
+				list.addAll(batch);
+				batch.clear();
+				KThread.yield();
+			}
+		}
+		list.addAll(batch);
+		for (int i = 0; i < k; i++) tlist.get(i).join();
+		if (error[0] != null) return error[0];
+		for (int i = 0; i < n; i++)
+			if (!seen[i]) return "Object " + i + " never taken";
+		if (list.removeFirstNoWait() != null) return "List not empty";
+
+		for (int i = 0; i < 5; i++) list.add(-1);
+		for (int i = 0; i < 5; i++) list.removeFirst();
+		for (int i = 0; i < n; i++) list.add(i);
+		if (list.size() != n) return "Size is " + list.size() + " instead of " + n;
+		LinkedList<Object> out = new LinkedList<Object> ();
+		if (list.drainTo(out, n / 2) != n / 2) return "drainTo() took the wrong number of objects";
+		list.drainTo(out, n);
+		for (int i = 0; i < n; i++)
+			if ((Integer) out.get(i) != i) return "drainTo() out of order at " + i;
+		if (list.drainTo(out, n) != 0) return "drainTo() of an empty list";
+
+		return "SynchList Test passed, K = " + k + ", N = " + n;
+	}
+	/**
+	 * Testing ticket donation along several paths, for the schedulers
+	 * that add donations up (lottery and stride).
+	 * W waits on a queue held by H, and on one held by R, which waits on
+	 * H's queue too; H must get W's tickets along both paths, and lose
+	 * them again when W stops waiting. Then H waits on R, closing a cycle,
+	 * which must neither hang nor leave anything behind. Last, the cycle is
+	 * closed again and broken by R's wait timing out; H's wait must then
+	 * pass on everything H has, including what W donates to it.
+	 */
+	public String testDonationPaths() {
+		Scheduler sched = ThreadedKernel.scheduler;
+		if (!(sched instanceof LotteryScheduler) && !(sched instanceof StrideScheduler))
+			return "Donation paths test skipped";
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread h = new KThread().setName("(paths) H");
+		KThread r = new KThread().setName("(paths) R");
+		KThread w = new KThread().setName("(paths) W");
+		sched.setPriority(h, 1);
+		sched.setPriority(r, 2);
+		sched.setPriority(w, 5);
+
+		ThreadQueue hq = sched.newThreadQueue(true);
+		ThreadQueue rq = sched.newThreadQueue(true);
+		hq.acquire(h);
+		rq.acquire(r);
+		hq.waitForAccess(r);
+		rq.waitForAccess(w);
+		hq.waitForAccess(w);
+
+		String error = null;
+		if (sched.getEffectivePriority(h) != 1 + (2+5) + 5)
+			error = "H missed a path: " + sched.getEffectivePriority(h);
+		sched.setPriority(w, 6);
+		if (error == null && sched.getEffectivePriority(h) != 1 + (2+6) + 6)
+			error = "H missed a change along a path: " + sched.getEffectivePriority(h);
+		rq.remove(w);
+		if (error == null && sched.getEffectivePriority(h) != 1 + 2 + 6)
+			error = "H kept a removed path: " + sched.getEffectivePriority(h);
+		hq.remove(w);
+		if (error == null && sched.getEffectivePriority(h) != 1 + 2)
+			error = "H kept W's tickets: " + sched.getEffectivePriority(h);
+
+		rq.waitForAccess(h);
+		sched.setPriority(h, 4);
+		rq.remove(h);
+		if (error == null && (sched.getEffectivePriority(h) != 4 + 2
+				      || sched.getEffectivePriority(r) != 2))
+			error = "A cycle left tickets behind: " + sched.getEffectivePriority(h)
+				+ " " + sched.getEffectivePriority(r);
+
+		rq.waitForAccess(h);
+		hq.waitForAccess(w);
+		hq.remove(r); // R's wait times out, as a timed wait removes it
+		if (error == null && (sched.getEffectivePriority(h) != 4 + 6
+				      || sched.getEffectivePriority(r) != 2 + (4+6)))
+			error = "H's wait stayed cut off after the cycle broke: "
+				+ sched.getEffectivePriority(h) + " " + sched.getEffectivePriority(r);
+		rq.remove(h);
+		hq.remove(w);
+		if (error == null && (sched.getEffectivePriority(h) != 4
+				      || sched.getEffectivePriority(r) != 2))
+			error = "A broken cycle left tickets behind: " + sched.getEffectivePriority(h)
+				+ " " + sched.getEffectivePriority(r);
+		Machine.interrupt().restore(intStatus);
+
+		if (error != null) return error;
+		return "Donation paths test passed";
+	}
+	/**
+	 * Testing that taking locks does not cost a thread its share of the
+	 * processor under the stride scheduler.
+	 * A and B have equal tickets and take turns on a ready queue, but each
+	 * time A runs it is also handed a contended lock; both must still be
+	 * picked equally often.
+	 */
+	public String testStrideLockShare() {
+		Scheduler sched = ThreadedKernel.scheduler;
+		if (!(sched instanceof StrideScheduler))
+			return "Stride lock share test skipped";
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread a = new KThread().setName("(share) A");
+		KThread b = new KThread().setName("(share) B");
+		KThread holder = new KThread().setName("(share) holder");
+		ThreadQueue ready = sched.newReadyQueue();
+		ThreadQueue lock = sched.newThreadQueue(true);
+		ready.waitForAccess(a);
+		ready.waitForAccess(b);
+
+		int picksA = 0, picksB = 0;
+		for (int i = 0; i < 1000; i++) {
+			KThread t = ready.nextThread();
+			if (t == a) {
+				picksA++;
+				lock.acquire(holder);
+				lock.waitForAccess(a);
+				lock.nextThread(); // the holder hands the lock to A
+				lock.nextThread(); // and A releases it
+			}
+			else picksB++;
+			ready.waitForAccess(t);
+		}
+		ready.remove(a);
+		ready.remove(b);
+		ready.nextThread();
+		Machine.interrupt().restore(intStatus);
+
+		if (Math.abs(picksA - picksB) > 1)
+			return "A got " + picksA + " picks to B's " + picksB;
+		return "Stride lock share test passed";
+	}
 	/**
 	 * Testing the Boat class - Moved to Boat.selfTest()
 	 */
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,41 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Tell this queue that the resource it guards is held by <i>ways</i>
+     * threads together, each of them owning a queue of its own that the
+     * same threads wait on, as with the readers of a read-write lock. A
+     * scheduler that adds donations up then passes on only
+     * 1/<i>ways</i> of what this queue's waiters donate, so that each
+     * waiter's tickets are counted once among all the holders. A scheduler
+     * that donates the highest priority instead can ignore this, as this
+     * default does.
+     *
+     * @param	ways	the number of holders sharing the donations; 1 for a
+     *			new queue.
+     */
+    public void splitDonation(int ways) {
+	Lib.assertTrue(ways > 0);
+    }
+
+    /**
+     * Stop the specified thread from waiting for access, if it is waiting on
+     * this queue, so that <tt>nextThread()</tt> will not return it. Any
+     * priority it donated through this queue is taken back. Timed waits use
+     * this when they time out.
+     *
+     * <p>
+     * Queues that cannot do this need not override it, but then timed waits
+     * cannot be used with them.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public boolean remove(KThread thread) {
+	Lib.assertNotReached("this queue cannot remove waiting threads");
+	return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
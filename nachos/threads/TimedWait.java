@@ -0,0 +1,55 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A timeout on a thread waiting in a <tt>ThreadQueue</tt>. If the alarm goes
+ * off while the thread is still in the queue, the thread is taken out of the
+ * queue and readied, and the wait counts as timed out. Used by the timed
+ * variants of <tt>Semaphore.P()</tt>, <tt>Lock.acquire()</tt>, and
+ * <tt>Condition2.sleep()</tt>.
+ */
+class TimedWait implements Runnable {
+    /**
+     * Arrange for the current thread to be taken out of <i>queue</i> after
+     * <i>ticks</i> ticks. The current thread must already be waiting on it,
+     * and interrupts must be disabled.
+     *
+     * @param	queue	the queue the current thread is waiting on.
+     * @param	ticks	the minimum number of ticks to wait.
+     */
+    TimedWait(ThreadQueue queue, long ticks) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	this.queue = queue;
+	this.thread = KThread.currentThread();
+	alarm = ThreadedKernel.alarm.set(ticks, this);
+    }
+
+    /**
+     * Called from the timer interrupt handler when the time is up.
+     */
+    public void run() {
+	if (queue.remove(thread)) {
+	    timedOut = true;
+	    thread.ready();
+	}
+    }
+
+    /**
+     * Called once the thread has woken up. Cancel the alarm if it has not
+     * gone off yet.
+     *
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if it timed out.
+     */
+    boolean finish() {
+	alarm.cancel();
+	return !timedOut;
+    }
+
+    private ThreadQueue queue;
+    private KThread thread;
+    private Alarm.AlarmItem alarm;
+    private boolean timedOut = false;
+}
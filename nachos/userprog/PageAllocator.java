@@ -0,0 +1,234 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Keeps track of which physical pages are free. Free pages are kept in a
+ * bitmap, one bit per page, so pages can be handed out and taken back in
+ * bulk with a single acquisition of the lock, and free pages are always
+ * handed out lowest first, which keeps a process's pages physically
+ * contiguous whenever memory is not fragmented.
+ */
+public class PageAllocator {
+    /**
+     * Allocate a new page allocator, with all of <i>numPages</i> pages free.
+     *
+     * @param	numPages	the number of physical pages.
+     */
+    public PageAllocator(int numPages) {
+	Lib.assertTrue(numPages >= 0);
+
+	this.numPages = numPages;
+	free = new long[(numPages + 63) / 64];
+	for (int i=0; i<numPages; i++)
+	    free[i / 64] |= 1L << i;
+	numFree = numPages;
+    }
+
+    /**
+     * Allocate a single page.
+     *
+     * @return	the page number, or -1 if no page is free.
+     */
+    public int allocate() {
+	lock.acquire();
+
+	int ppn = -1;
+	if (numFree > 0) {
+	    ppn = nextFree(0);
+	    take(ppn);
+	}
+
+	lock.release();
+	return ppn;
+    }
+
+    /**
+     * Allocate <i>n</i> pages, all or nothing. The pages are returned in
+     * increasing order.
+     *
+     * @param	n	the number of pages to allocate.
+     * @return	the page numbers, or <tt>null</tt> if fewer than <i>n</i>
+     *		pages are free.
+     */
+    public int[] allocate(int n) {
+	Lib.assertTrue(n >= 0);
+
+	lock.acquire();
+
+	if (n > numFree) {
+	    lock.release();
+	    return null;
+	}
+
+	int[] pages = new int[n];
+	int ppn = -1;
+	for (int i=0; i<n; i++) {
+	    ppn = nextFree(ppn+1);
+	    take(ppn);
+	    pages[i] = ppn;
+	}
+
+	lock.release();
+	return pages;
+    }
+
+    /**
+     * Allocate <i>n</i> physically contiguous pages: the lowest run of
+     * <i>n</i> free pages.
+     *
+     * @param	n	the number of pages to allocate.
+     * @return	the first page number of the run, or -1 if there is no run
+     *		of <i>n</i> free pages.
+     */
+    public int allocateContiguous(int n) {
+	Lib.assertTrue(n > 0);
+
+	lock.acquire();
+
+	int first = -1;
+	if (n <= numFree) {
+	    int start = nextFree(0);
+	    while (start != -1 && start + n <= numPages) {
+		int end = nextUsed(start);
+		if (end - start >= n) {
+		    first = start;
+		    break;
+		}
+		start = nextFree(end);
+	    }
+	}
+
+	if (first != -1) {
+	    for (int i=0; i<n; i++)
+		take(first+i);
+	}
+
+	lock.release();
+	return first;
+    }
+
+    /**
+     * Return a page to the free pool.
+     *
+     * @param	ppn	the page number, which must be allocated.
+     */
+    public void free(int ppn) {
+	lock.acquire();
+	give(ppn);
+	lock.release();
+    }
+
+    /**
+     * Return several pages to the free pool.
+     *
+     * @param	pages	the page numbers, which must all be allocated.
+     */
+    public void free(int[] pages) {
+	lock.acquire();
+	for (int i=0; i<pages.length; i++)
+	    give(pages[i]);
+	lock.release();
+    }
+
+    /**
+     * Return the number of free pages.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the total number of pages.
+     *
+     * @return	the number of pages this allocator manages.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    private void take(int ppn) {
+	Lib.assertTrue(isFree(ppn));
+	free[ppn / 64] &= ~(1L << ppn);
+	numFree--;
+    }
+
+    private void give(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPages && !isFree(ppn));
+	free[ppn / 64] |= 1L << ppn;
+	numFree++;
+    }
+
+    private boolean isFree(int ppn) {
+	return (free[ppn / 64] & (1L << ppn)) != 0;
+    }
+
+    /**
+     * Return the lowest free page at or above <i>from</i>, or -1.
+     */
+    private int nextFree(int from) {
+	for (int w = from / 64; w < free.length; w++) {
+	    long bits = free[w];
+	    if (w == from / 64)
+		bits &= -1L << from;
+	    if (bits != 0)
+		return w*64 + Long.numberOfTrailingZeros(bits);
+	}
+	return -1;
+    }
+
+    /**
+     * Return the lowest allocated page at or above <i>from</i>, or
+     * <tt>numPages</tt> if there is none.
+     */
+    private int nextUsed(int from) {
+	for (int w = from / 64; w < free.length; w++) {
+	    long bits = ~free[w];
+	    if (w == from / 64)
+		bits &= -1L << from;
+	    if (bits != 0)
+		return Math.min(numPages, w*64 + Long.numberOfTrailingZeros(bits));
+	}
+	return numPages;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	PageAllocator pages = new PageAllocator(130);
+
+	int[] all = pages.allocate(130);
+	Lib.assertTrue(all != null && all[129] == 129);
+	Lib.assertTrue(pages.allocate() == -1 && pages.allocate(1) == null);
+	pages.free(all);
+	Lib.assertTrue(pages.getNumFree() == 130);
+
+	// free every third page, and look for runs among them
+	for (int i=0; i<130; i++)
+	    Lib.assertTrue(pages.allocate() == i);
+	for (int i=0; i<130; i+=3)
+	    pages.free(i);
+	Lib.assertTrue(pages.allocateContiguous(2) == -1);
+	pages.free(1);
+	Lib.assertTrue(pages.allocateContiguous(2) == 0);
+	for (int i=62; i<70; i++)
+	    if (i % 3 != 0)
+		pages.free(i);
+	Lib.assertTrue(pages.allocateContiguous(8) == 62);
+	Lib.assertTrue(pages.allocate() == 3);
+
+	int[] some = pages.allocate(3);
+	Lib.assertTrue(some[0] == 6 && some[1] == 9 && some[2] == 12);
+	Lib.assertTrue(pages.allocate(pages.getNumFree() + 1) == null);
+    }
+
+    private int numPages;
+    /** Bit <i>i</i> of <tt>free[w]</tt> is set if page 64<i>w</i>+<i>i</i> is free. */
+    private long[] free;
+    private int numFree;
+    private Lock lock = new Lock();
+}
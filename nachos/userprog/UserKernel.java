@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -24,12 +22,7 @@ public class UserKernel extends ThreadedKernel {
     public void initialize(String[] args) {
 	super.initialize(args);
 	//Assume this calls only once...
-	fpLock = new Lock();
-	freePages = new LinkedList<Integer> ();
-	fpLock.acquire();
-	for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
-		freePages.add(i);
-	fpLock.release();
+	pageAllocator = new PageAllocator(Machine.processor().getNumPhysPages());
 	console = new SynchConsole(Machine.console());
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
@@ -38,24 +31,30 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Synch'd fetch a free page number.
-     * As the # of free page requests are not a lot in each process(8 only), we don't implement bulk request.
-     * Also this is to intentionally make fragments in physical page addresses to test robustness.
+     * Synch'd fetch a free page number; the lowest one free.
+     * @return the page number, or -1 if none is free.
      */
     public static int requestPP() {
-    	fpLock.acquire();
-    	int res = -1;
-    	if (!freePages.isEmpty()) res = freePages.removeFirst();
-    	fpLock.release();
-    	return res;
+    	return pageAllocator.allocate();
+    }
+    /**
+     * Synch'd fetch n free page numbers at once, all or nothing.
+     * @return the page numbers in increasing order, or null if fewer than n are free.
+     */
+    public static int[] requestPP(int n) {
+    	return pageAllocator.allocate(n);
     }
     /**
      * Synch'd release a page number.
      */
     public static void releasePP(int num) {
-    	fpLock.acquire();
-    	freePages.addFirst(num); // Re-usage for pages with smaller IDs
-    	fpLock.release();
+    	pageAllocator.free(num);
+    }
+    /**
+     * Synch'd release several page numbers at once.
+     */
+    public static void releasePP(int[] nums) {
+    	pageAllocator.free(nums);
     }
     /**
      * Test the console device.
@@ -76,6 +75,7 @@ public class UserKernel extends ThreadedKernel {
 
 	System.out.println("");
 	*/
+	PageAllocator.selfTest();
 	Tests.VMTest();
     }
 
@@ -140,8 +140,8 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
-    private static LinkedList<Integer> freePages = null;
-    private static Lock fpLock = null;
+    /** The physical pages not in use by any process. */
+    public static PageAllocator pageAllocator = null;
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
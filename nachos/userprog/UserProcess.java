@@ -5,6 +5,7 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -38,11 +39,10 @@ public class UserProcess {
     	//Allocate 8 pages for testing purposes?
     	numPages = 8;
     	pageTable = new TranslationEntry[8];
-    	for (int i=0; i<8; i++){
-    		int ppn = UserKernel.requestPP();
-    		Lib.assertTrue(ppn != -1);
-    	    pageTable[i] = new TranslationEntry(i, ppn, true,false,false,false);
-    	}
+    	int[] ppns = UserKernel.requestPP(8);
+    	Lib.assertTrue(ppns != null);
+    	for (int i=0; i<8; i++)
+    	    pageTable[i] = new TranslationEntry(i, ppns[i], true,false,false,false);
     }
 	status = -1;
     }
@@ -113,6 +113,15 @@ public class UserProcess {
 	Machine.processor().setPageTable(pageTable);
     }
 
+    /**
+     * Return this process's ID.
+     *
+     * @return	the process ID.
+     */
+    protected int getPid() {
+	return pid;
+    }
+
     /**
      * Read a null-terminated string from this process's virtual memory. Read
      * at most <tt>maxLength + 1</tt> bytes from the specified address, search
@@ -175,13 +184,13 @@ public class UserProcess {
     	Lib.debug(dbgProcess, pid + "  \t\t vaddr = " + po(vaddr) + " len = " + length);
     	int page = Processor.pageFromAddress(vaddr), amount = 0; // first page in the virtual address
     	while (length > 0) {
-    		if (page >= numPages) break;
-    		TranslationEntry entry = pageTable[page];
-    		if (!entry.valid) break;
+    		TranslationEntry entry = pinPage(page, false);
+    		if (entry == null) break;
     		int paddr_s = entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
     		int psize = Math.min(length, pageSize - Processor.offsetFromAddress(vaddr));
     		Lib.assertTrue(entry.ppn == Processor.pageFromAddress(psize + paddr_s - 1));
     		int res = readPhysicalMemory(paddr_s, data, offset, psize);
+    		unpinPage(page);
     		offset += res;
     		vaddr += res;
     		length -= res;
@@ -248,15 +257,15 @@ public class UserProcess {
     	if (length > 0)
     	Lib.debug(dbgProcess, pid + "  \t\t vaddr = " + po(vaddr) + " len = " + length);
     	while (length > 0) {
-    		if (page >= numPages) break;
-    		TranslationEntry entry = pageTable[page];
+    		TranslationEntry entry = pinPage(page, true);
     		//Lib.debug(dbgProcess, pid + "  \t\t\t Block #" + page + " PPN" + entry.ppn + " RO:" + entry.readOnly);
-    		if (!entry.valid || entry.readOnly) break;
+    		if (entry == null) break;
     		int paddr_s = entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
     		int psize = Math.min(length, pageSize - Processor.offsetFromAddress(vaddr));
     		Lib.assertTrue(entry.ppn == Processor.pageFromAddress(psize + paddr_s - 1));
     		//Lib.debug(dbgProcess, pid + "  \t\t\t\t From:" + po(paddr_s) + " len:" + psize);
     		int res = writePhysicalMemory(paddr_s, data, offset, psize);
+    		unpinPage(page);
     		offset += res;
     		vaddr += res;
     		length -= res;
@@ -285,6 +294,113 @@ public class UserProcess {
 	return amount;
     }
 
+    /**
+     * Transfer up to <i>length</i> bytes between <i>file</i> and this
+     * process's virtual memory at <i>vaddr</i>, without an intermediate
+     * buffer: the page table is walked, and each run of pages that is also
+     * contiguous in physical memory is handed to the file as a window of
+     * <tt>Processor.getMemory()</tt>. Pages are pinned while the file works on
+     * them, since it may block.
+     *
+     * @param	file	the file to transfer to or from.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * <p>
+     * The whole range is checked with <tt>canAccess()</tt> before the file is
+     * touched, so a bad buffer moves no bytes and leaves the file position
+     * alone. If a page still cannot be pinned part way through, the bytes
+     * already transferred are reported, as for a short read or write.
+     *
+     * @return	the number of bytes transferred, which is less than
+     *		<i>length</i> only if the file came up short or a page could
+     *		not be pinned; or -1 if part of the range is not mapped (or is
+     *		read-only when reading into it), or if nothing could be
+     *		transferred.
+     */
+    protected int transferFile(OpenFile file, int vaddr, int length,
+			       boolean toMemory) {
+    	if (vaddr < 0) return -1;
+    	if (length == 0) return 0;
+    	long last = (long) vaddr + length - 1;
+    	if (last >= (long) numPages * pageSize) return -1;
+    	for (int vpn = Processor.pageFromAddress(vaddr); vpn <= (int) (last / pageSize); vpn++)
+    		if (!canAccess(vpn, toMemory)) return -1;
+    	byte[] memory = Machine.processor().getMemory();
+    	int amount = 0;
+    	while (length > 0) {
+    		int vpn = Processor.pageFromAddress(vaddr);
+    		TranslationEntry entry = pinPage(vpn, toMemory);
+    		if (entry == null) return (amount == 0) ? -1 : amount;
+    		// extend the run while the next page follows in physical memory too
+    		int pages = 1;
+    		int run = Math.min(length, pageSize - Processor.offsetFromAddress(vaddr));
+    		while (run < length) {
+    			TranslationEntry next = pinPage(vpn + pages, toMemory);
+    			if (next == null) break; // reported when the walk gets there
+    			if (next.ppn != entry.ppn + pages) {
+    				unpinPage(vpn + pages);
+    				break;
+    			}
+    			pages++;
+    			run += Math.min(length - run, pageSize);
+    		}
+    		int paddr = entry.ppn * pageSize + Processor.offsetFromAddress(vaddr);
+    		int res = toMemory ? file.read(memory, paddr, run) : file.write(memory, paddr, run);
+    		for (int i = 0; i < pages; i++)
+    			unpinPage(vpn + i);
+    		if (res < 0) return (amount == 0) ? -1 : amount;
+    		amount += res;
+    		vaddr += res;
+    		length -= res;
+    		if (res < run) break; // the file has no more for now
+    	}
+    	return amount;
+    }
+    /**
+     * Check whether virtual page <i>vpn</i> may be used by
+     * <tt>transferFile()</tt>: whether it is mapped, and writable if
+     * <i>write</i> is set. Does not pin the page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	write	<tt>true</tt> if the page would be written.
+     * @return	<tt>true</tt> if <tt>pinPage()</tt> may be used on the page.
+     */
+    protected boolean canAccess(int vpn, boolean write) {
+    	if (vpn < 0 || vpn >= numPages) return false;
+    	TranslationEntry entry = pageTable[vpn];
+    	return entry.valid && !(write && entry.readOnly);
+    }
+    /**
+     * Look up a page for <tt>transferFile()</tt> or the virtual memory
+     * copying functions, and keep it where it is
+     * until <tt>unpinPage()</tt> is called. Marks the page used, and dirty if
+     * it is to be written.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	write	<tt>true</tt> if the page is about to be written.
+     * @return	the page's translation, or <tt>null</tt> if it is not mapped,
+     *		or is read-only and <i>write</i> is set.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean write) {
+    	if (vpn < 0 || vpn >= numPages) return null;
+    	TranslationEntry entry = pageTable[vpn];
+    	if (!entry.valid || (write && entry.readOnly)) return null;
+    	entry.used = true;
+    	if (write) entry.dirty = true;
+    	return entry;
+    }
+    /**
+     * Release a page pinned by <tt>pinPage()</tt>. Pages never move here, so
+     * there is nothing to do; subclasses that page to disk must not evict a
+     * page until it has been unpinned as many times as it was pinned.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    protected void unpinPage(int vpn) {
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -411,20 +527,15 @@ public class UserProcess {
 	// load sections
 	// Init pageTables
 	pageTable = new TranslationEntry[numPages];
-	for (int i=0; i<numPages; i++){
-		int ppn = UserKernel.requestPP();
-		if (ppn == -1) {
-			//for (int j = 0; j < i; j++) {
-			//	pageTable[j].valid = false;
-			//	UserKernel.releasePP(pageTable[j].ppn);
-			//}
-			coff.close();
-			return false;
-		}
-	    pageTable[i] = new TranslationEntry(i, ppn, true ,false,false,false);
+	int[] ppns = UserKernel.requestPP(numPages);
+	if (ppns == null) {
+	    coff.close();
+	    Lib.debug(dbgProcess, pid + "  \tinsufficient free physical memory");
+	    return false;
 	}
-	
-	
+	for (int i=0; i<numPages; i++)
+	    pageTable[i] = new TranslationEntry(i, ppns[i], true ,false,false,false);
+
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
@@ -452,11 +563,14 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+    	int[] ppns = new int[numPages];
+    	int n = 0;
     	for (int i = 0; i < numPages; i++) 
     		if (pageTable[i].valid){
     			pageTable[i].valid = false;
-    			UserKernel.releasePP(pageTable[i].ppn);
+    			ppns[n++] = pageTable[i].ppn;
     		}
+    	UserKernel.releasePP(n == numPages ? ppns : Arrays.copyOf(ppns, n));
     }
     protected boolean closeFiles() {
     	boolean res = true;
@@ -641,19 +755,10 @@ public class UserProcess {
     	Lib.debug(dbgProcess, pid + "  Entered read call with fd = " + desc.get(a0) + ", length = " + a2);
     	OpenFile file = desc.get(a0).file;
     	//Lib.debug(dbgProcess, pid + "  File Name = " + file.getName() + ", length = " + file.length());
-    	//We need to avoid creating too large buffer here!
     	if (a2 > pageSize * numPages) return -1;
-    	byte[] buffer = new byte[a2];
-    	int len = file.read(buffer, 0, a2);
-    	if (a0 >= 2)
-    	Lib.debug(dbgProcess, pid + "  \tByte Read = " + len);
-    	if (len == -1) return -1; // Fail to read; Break now.
-    	int actuals = writeVirtualMemory(a1, buffer, 0, len);
-    	if (a0 >= 2)
-    	Lib.debug(dbgProcess, pid + "  \tActual Write = " + actuals);
-    	if (actuals < len) return -1; // Fail to write; Report error as required.
-    	// Note that as specified in syscall.h, if we don't have sufficient space for writing the results back to memory
-    	// it would be identified as error
+    	// The file reads straight into our pages. Note that as specified in syscall.h, if we don't have
+    	// sufficient space for writing the results back to memory it would be identified as error
+    	int len = transferFile(file, a1, a2, true);
     	if (a0 >= 2)
     	Lib.debug(dbgProcess, pid + "  Quit read call with bytes read = " + len);
     	return len;
@@ -668,21 +773,12 @@ public class UserProcess {
     	if (a0 >= 2)
         	Lib.debug(dbgProcess, pid + "  Entered write call with fd = " + a0 + ", length = " + a2);
     	OpenFile file = desc.get(a0).file;
-    	//We need to avoid creating too large buffer here!
     	if (a2 > pageSize * numPages) return -1;
-    	byte[] buffer = new byte[a2];
-    	int actuals = readVirtualMemory(a1, buffer);
-    	// Note that as specified in syscall.h, if we don't have sufficient bytes read from memory
-    	// it would be identified as error
-    	if (actuals < a2) return -1;
-    	// Currently only a one-round attempt; Can easily change to read-until-blocked.
-    	int len = file.write(buffer, 0, a2);
-    	// Note that as specified in syscall.h, if we don't manage to write sufficient bytes to the file
-    	// it would be identified as error, while in reading it wouldn't.
+    	// The file writes straight from our pages. Note that as specified in syscall.h, if we don't have
+    	// sufficient bytes in memory it would be identified as error, while a short write to the file wouldn't.
+    	int len = transferFile(file, a1, a2, false);
     	if (a0 >= 2)
     	Lib.debug(dbgProcess, pid + "  Quit write call with bytes written = " + len);
-    	//if (len < a2) return -1;
-    	//else return a2;
     	return len;
     }
     private int handleClose(int a0) {
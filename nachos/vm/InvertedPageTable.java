@@ -0,0 +1,136 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A global inverted page table: one entry per physical page, recording which
+ * process and virtual page it holds. An entry can be found from its physical
+ * page number directly, or from (pid, vpn) through a hash table whose chains
+ * run through the entries themselves, so lookups take constant time and
+ * nothing is allocated after construction.
+ *
+ * <p>
+ * Each entry refers to the owning process's own <tt>TranslationEntry</tt>, so
+ * the valid, used, and dirty bits are shared rather than copied. None of the
+ * methods block or enable interrupts, so each runs atomically on the single
+ * processor.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty inverted page table.
+     *
+     * @param	numFrames	the number of physical pages.
+     */
+    public InvertedPageTable(int numFrames) {
+	pids = new int[numFrames];
+	entries = new TranslationEntry[numFrames];
+	next = new int[numFrames];
+
+	int size = 1;
+	while (size < numFrames*2)
+	    size *= 2;
+	buckets = new int[size];
+	for (int i=0; i<size; i++)
+	    buckets[i] = -1;
+    }
+
+    /**
+     * Record that physical page <tt>entry.ppn</tt> holds virtual page
+     * <tt>entry.vpn</tt> of process <i>pid</i>.
+     *
+     * @param	pid	the owning process.
+     * @param	entry	the owner's translation for the page.
+     */
+    public void insert(int pid, TranslationEntry entry) {
+	int ppn = entry.ppn;
+	Lib.assertTrue(entries[ppn] == null);
+	Lib.assertTrue(lookup(pid, entry.vpn) == null);
+
+	int b = bucket(pid, entry.vpn);
+	pids[ppn] = pid;
+	entries[ppn] = entry;
+	next[ppn] = buckets[b];
+	buckets[b] = ppn;
+	numUsed++;
+    }
+
+    /**
+     * Find the translation for virtual page <i>vpn</i> of process
+     * <i>pid</i>.
+     *
+     * @return	the owner's translation, or <tt>null</tt> if the page is not
+     *		in physical memory.
+     */
+    public TranslationEntry lookup(int pid, int vpn) {
+	for (int ppn=buckets[bucket(pid, vpn)]; ppn != -1; ppn=next[ppn]) {
+	    if (pids[ppn] == pid && entries[ppn].vpn == vpn)
+		return entries[ppn];
+	}
+	return null;
+    }
+
+    /**
+     * Forget what physical page <i>ppn</i> holds.
+     *
+     * @param	ppn	an occupied physical page.
+     */
+    public void remove(int ppn) {
+	TranslationEntry entry = entries[ppn];
+	Lib.assertTrue(entry != null);
+
+	int b = bucket(pids[ppn], entry.vpn);
+	if (buckets[b] == ppn) {
+	    buckets[b] = next[ppn];
+	}
+	else {
+	    int prev = buckets[b];
+	    while (next[prev] != ppn)
+		prev = next[prev];
+	    next[prev] = next[ppn];
+	}
+
+	entries[ppn] = null;
+	numUsed--;
+    }
+
+    /**
+     * Return the translation of the page held in physical page <i>ppn</i>.
+     *
+     * @return	the owner's translation, or <tt>null</tt> if <i>ppn</i> is
+     *		free.
+     */
+    public TranslationEntry getEntry(int ppn) {
+	return entries[ppn];
+    }
+
+    /**
+     * Return the process that owns physical page <i>ppn</i>, which must be
+     * occupied.
+     */
+    public int getPid(int ppn) {
+	Lib.assertTrue(entries[ppn] != null);
+	return pids[ppn];
+    }
+
+    /**
+     * Return the number of occupied physical pages.
+     */
+    public int getNumUsed() {
+	return numUsed;
+    }
+
+    private int bucket(int pid, int vpn) {
+	int h = pid * 0x9E3779B1 + vpn;
+	return (h ^ (h >>> 16)) & (buckets.length-1);
+    }
+
+    /** The owner, translation, and next page in its chain, per page. */
+    private int[] pids;
+    private TranslationEntry[] entries;
+    private int[] next;
+    /** The first physical page in each hash chain, or -1. */
+    private int[] buckets;
+    private int numUsed = 0;
+}
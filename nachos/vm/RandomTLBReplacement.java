@@ -0,0 +1,18 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Replaces a TLB entry chosen at random.
+ */
+public class RandomTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new random TLB replacement policy.
+     */
+    public RandomTLBReplacement() {
+    }
+
+    public int pickVictim() {
+	return Lib.random(Machine.processor().getTLBSize());
+    }
+}
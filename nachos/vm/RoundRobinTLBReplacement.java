@@ -0,0 +1,27 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Replaces TLB entries in turn, so the entry replaced is the one filled
+ * longest ago.
+ */
+public class RoundRobinTLBReplacement extends TLBReplacement {
+    /**
+     * Allocate a new round-robin TLB replacement policy.
+     */
+    public RoundRobinTLBReplacement() {
+    }
+
+    public int pickVictim() {
+	int victim = nextVictim;
+	nextVictim = (nextVictim+1) % Machine.processor().getTLBSize();
+	return victim;
+    }
+
+    public void flushed() {
+	nextVictim = 0;
+    }
+
+    private int nextVictim = 0;
+}
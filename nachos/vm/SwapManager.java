@@ -0,0 +1,293 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Frees physical pages when none are left, by evicting resident pages chosen
+ * by the clock (second-chance) algorithm and writing the dirty ones to a swap
+ * file.
+ *
+ * <p>
+ * The clock hand sweeps the physical pages in the inverted page table,
+ * clearing the used bit of each page it passes and evicting the first page
+ * it finds whose used bit was already clear. Pages that are pinned, or being
+ * loaded and so not yet in the inverted page table, are skipped. Clean pages
+ * are simply dropped, since they can be read again from the executable, from
+ * their swap slot, or zero-filled. Dirty pages are written to swap in
+ * batches: when the victim is written, the dirty unused pages the hand is
+ * about to reach are cleaned along with it, into a run of adjacent swap slots
+ * with a single file write, so most later evictions need no write at all.
+ *
+ * <p>
+ * Free swap slots are kept in a <tt>PageAllocator</tt> bitmap. All paging
+ * (faulting pages in, evicting, and unloading a process) is done holding
+ * <tt>lock</tt>, so a page is never read from its slot while it is still being
+ * written there.
+ */
+public class SwapManager {
+    /**
+     * Allocate a new swap manager.
+     *
+     * @param	swapFile	the open swap file, or <tt>null</tt> if there is
+     *				none, in which case only clean pages are evicted.
+     * @param	numSlots	the number of pages the swap file may hold.
+     * @param	batchSize	the most pages to write to swap at once.
+     */
+    public SwapManager(OpenFile swapFile, int numSlots, int batchSize) {
+	Lib.assertTrue(batchSize > 0);
+
+	this.swapFile = swapFile;
+	this.batchSize = batchSize;
+	slots = new PageAllocator(swapFile == null ? 0 : numSlots);
+
+	int numFrames = Machine.processor().getNumPhysPages();
+	owners = new VMProcess[numFrames];
+	pinCount = new int[numFrames];
+	buffer = new byte[batchSize*pageSize];
+    }
+
+    /**
+     * Allocate a physical page, evicting pages if none are free. The caller
+     * must hold <tt>lock</tt>.
+     *
+     * @return	the physical page number, or -1 if every page is pinned or
+     *		the swap file is full.
+     */
+    int allocatePage() {
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	int ppn = UserKernel.requestPP();
+	if (ppn == -1 && evict())
+	    ppn = UserKernel.requestPP();
+
+	return ppn;
+    }
+
+    /**
+     * Record that <i>owner</i> has loaded a page into physical page
+     * <i>ppn</i>, which is now in the inverted page table.
+     */
+    void setOwner(int ppn, VMProcess owner) {
+	owners[ppn] = owner;
+    }
+
+    /**
+     * Record that physical page <i>ppn</i> is no longer in use by its owner.
+     */
+    void clearOwner(int ppn) {
+	owners[ppn] = null;
+    }
+
+    /**
+     * Keep physical page <i>ppn</i> from being evicted until it is unpinned
+     * as many times as it was pinned.
+     */
+    void pin(int ppn) {
+	pinCount[ppn]++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     */
+    void unpin(int ppn) {
+	Lib.assertTrue(pinCount[ppn] > 0);
+	pinCount[ppn]--;
+    }
+
+    /**
+     * Read a page back from swap slot <i>slot</i> into physical page
+     * <i>ppn</i>. The caller must hold <tt>lock</tt>; the slot stays
+     * allocated, so the page can be dropped again without being written if
+     * it is not changed.
+     *
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    boolean readPage(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	VMKernel.numSwapReads++;
+	return swapFile.read(slot*pageSize, memory, ppn*pageSize, pageSize)
+	    == pageSize;
+    }
+
+    /**
+     * Return a swap slot to the free pool.
+     */
+    void freeSlot(int slot) {
+	slots.free(slot);
+    }
+
+    /**
+     * Evict the page under the clock hand whose used bit is clear, writing
+     * it to swap if it is dirty. Up to <tt>batchSize</tt>-1 dirty, unused
+     * pages just past it are written in the same batch and left in memory,
+     * so that when the hand reaches them they can be dropped without another
+     * write.
+     *
+     * @return	<tt>true</tt> if a page was freed.
+     */
+    private boolean evict() {
+	int numFrames = owners.length;
+
+	// two sweeps are enough to clear every used bit and come back round
+	int victim = -1;
+	for (int step=0; step<2*numFrames && victim == -1; step++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    TranslationEntry entry = getEvictable(ppn);
+	    if (entry == null)
+		continue;
+
+	    if (entry.used)
+		entry.used = false;
+	    else
+		victim = ppn;
+	}
+
+	if (victim == -1)
+	    return false;
+
+	// gather the pages to write, starting with the victim if it is dirty
+	int[] batch = new int[batchSize];
+	int n = 0;
+	if (getEntry(victim).dirty)
+	    batch[n++] = victim;
+
+	for (int i=0; i<numFrames/4 && n<batchSize; i++) {
+	    int ppn = (hand+i) % numFrames;
+	    TranslationEntry entry = getEvictable(ppn);
+	    if (ppn != victim && entry != null && entry.dirty && !entry.used)
+		batch[n++] = ppn;
+	}
+
+	int[] dirtySlots = allocateSlots(n);
+	if (dirtySlots == null) {
+	    if (getEntry(victim).dirty) {
+		Lib.debug(dbgVM, "\tswap file full");
+		return false;
+	    }
+	    n = 0;
+	    dirtySlots = new int[0];
+	}
+
+	// copy the pages out before any of them can change, and mark them
+	// clean; a page written to after this is marked dirty again
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<n; i++) {
+	    int ppn = batch[i];
+	    TranslationEntry entry = getEntry(ppn);
+	    System.arraycopy(memory, ppn*pageSize, buffer, i*pageSize,
+			     pageSize);
+	    if (owners[ppn] == VMKernel.currentProcess())
+		VMKernel.cleanTLBPage(entry);
+	    entry.dirty = false;
+	    owners[ppn].pageWritten(entry.vpn, dirtySlots[i]);
+	}
+
+	TranslationEntry entry = getEntry(victim);
+	if (owners[victim] == VMKernel.currentProcess())
+	    VMKernel.invalidateTLBPage(entry);
+	entry.valid = false;
+	VMKernel.invertedPageTable.remove(victim);
+	owners[victim] = null;
+	UserKernel.releasePP(victim);
+
+	Lib.debug(dbgVM, "\tevicted PPN" + victim + " (VPN" + entry.vpn
+		  + "), writing " + n + " pages");
+
+	writeSlots(dirtySlots);
+	VMKernel.numEvictions++;
+	return true;
+    }
+
+    /**
+     * Return the translation of the page in physical page <i>ppn</i> if it
+     * can be evicted: if it is resident and not pinned. Its used and dirty
+     * bits are brought up to date from the TLB first.
+     */
+    private TranslationEntry getEvictable(int ppn) {
+	TranslationEntry entry = getEntry(ppn);
+	if (entry == null || pinCount[ppn] > 0)
+	    return null;
+
+	// only the running process can have entries in the TLB
+	if (owners[ppn] == VMKernel.currentProcess())
+	    VMKernel.syncTLBPage(entry);
+
+	return entry;
+    }
+
+    private TranslationEntry getEntry(int ppn) {
+	return VMKernel.invertedPageTable.getEntry(ppn);
+    }
+
+    /**
+     * Allocate <i>n</i> swap slots, adjacent ones if possible.
+     *
+     * @return	the slots in increasing order, or <tt>null</tt> if fewer than
+     *		<i>n</i> are free.
+     */
+    private int[] allocateSlots(int n) {
+	if (n == 0)
+	    return new int[0];
+
+	int first = slots.allocateContiguous(n);
+	if (first == -1)
+	    return slots.allocate(n);
+
+	int[] run = new int[n];
+	for (int i=0; i<n; i++)
+	    run[i] = first+i;
+	return run;
+    }
+
+    /**
+     * Write page <i>i</i> of <tt>buffer</tt> to swap slot
+     * <tt>dirtySlots[i]</tt>, one file write per run of adjacent slots.
+     */
+    private void writeSlots(int[] dirtySlots) {
+	for (int i=0; i<dirtySlots.length; ) {
+	    int j = i+1;
+	    while (j < dirtySlots.length && dirtySlots[j] == dirtySlots[j-1]+1)
+		j++;
+
+	    int written = swapFile.write(dirtySlots[i]*pageSize, buffer,
+					 i*pageSize, (j-i)*pageSize);
+	    Lib.assertTrue(written == (j-i)*pageSize, "swap write failed");
+
+	    VMKernel.numSwapWrites++;
+	    i = j;
+	}
+
+	VMKernel.numPagesSwapped += dirtySlots.length;
+    }
+
+    /**
+     * Close the swap file, if there is one.
+     */
+    public void close() {
+	if (swapFile != null)
+	    swapFile.close();
+    }
+
+    /** Held while paging. */
+    final Lock lock = new Lock();
+
+    private OpenFile swapFile;
+    private int batchSize;
+    /** The free swap slots. */
+    private PageAllocator slots;
+    /** The process that owns each resident physical page. */
+    private VMProcess[] owners;
+    /** How many times each physical page is pinned. */
+    private int[] pinCount;
+    /** The next physical page the clock hand will look at. */
+    private int hand = 0;
+    /** Where dirty pages are copied before they are written. */
+    private byte[] buffer;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
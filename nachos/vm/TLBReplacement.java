@@ -0,0 +1,39 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides which TLB entry to replace when the TLB is full. The policy is
+ * chosen by the <tt>VMKernel.tlbReplacement</tt> key in
+ * <tt>nachos.conf</tt>.
+ *
+ * @see	nachos.vm.VMKernel#tlbReplacement
+ */
+public abstract class TLBReplacement {
+    /**
+     * Allocate a new TLB replacement policy.
+     */
+    public TLBReplacement() {
+    }
+
+    /**
+     * Pick the TLB entry to replace. Called only when every entry is valid.
+     *
+     * @return	the index of the entry to replace.
+     */
+    public abstract int pickVictim();
+
+    /**
+     * Called after TLB entry <i>index</i> has been filled.
+     *
+     * @param	index	the entry that was filled.
+     */
+    public void filled(int index) {
+    }
+
+    /**
+     * Called after the whole TLB has been invalidated.
+     */
+    public void flushed() {
+    }
+}
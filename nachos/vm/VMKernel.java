@@ -21,6 +21,28 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+
+	if (Machine.processor().hasTLB()) {
+	    String policy =
+		Config.getString("VMKernel.tlbReplacement",
+				 "nachos.vm.RoundRobinTLBReplacement");
+	    tlbReplacement = (TLBReplacement) Lib.constructObject(policy);
+	}
+
+	OpenFile swapFile = null;
+	if (fileSystem != null) {
+	    swapFileName = Config.getString("VMKernel.swapFile", "nachos.swp");
+	    swapFile = fileSystem.open(swapFileName, true);
+	    Lib.assertTrue(swapFile != null, "could not open swap file");
+	}
+
+	swapManager =
+	    new SwapManager(swapFile,
+			    Config.getInteger("VMKernel.swapPages", 1024),
+			    Config.getInteger("VMKernel.swapBatch", 4));
     }
 
     /**
@@ -37,13 +59,185 @@ public class VMKernel extends UserKernel {
 	super.run();
     }
     
+    /**
+     * Invalidate every TLB entry.
+     */
+    public static void flushTLB() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    processor.writeTLBEntry(i, invalidEntry);
+
+	tlbFilled = 0;
+	tlbReplacement.flushed();
+    }
+
+    /**
+     * Put a translation in the TLB, in an entry not used since the last
+     * flush if there is one, or else in the one the replacement policy
+     * picks. The used and dirty bits of the entry replaced are copied back
+     * into <i>pageTable</i> first.
+     *
+     * @param	entry		the translation to add.
+     * @param	pageTable	the current process's page table.
+     */
+    public static void fillTLB(TranslationEntry entry,
+			       TranslationEntry[] pageTable) {
+	Processor processor = Machine.processor();
+
+	int index;
+	if (tlbFilled < processor.getTLBSize()) {
+	    index = tlbFilled++;
+	}
+	else {
+	    index = tlbReplacement.pickVictim();
+	    syncTLBEntry(processor.readTLBEntry(index), pageTable);
+	}
+
+	processor.writeTLBEntry(index, entry);
+	tlbReplacement.filled(index);
+	numTLBRefills++;
+    }
+
+    /**
+     * Copy the used and dirty bits of every valid TLB entry back into
+     * <i>pageTable</i>.
+     *
+     * @param	pageTable	the current process's page table.
+     * @return	the virtual page numbers of the valid entries.
+     */
+    public static int[] syncTLB(TranslationEntry[] pageTable) {
+	Processor processor = Machine.processor();
+
+	int[] vpns = new int[processor.getTLBSize()];
+	int n = 0;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (syncTLBEntry(tlbEntry, pageTable))
+		vpns[n++] = tlbEntry.vpn;
+	}
+
+	int[] valid = new int[n];
+	System.arraycopy(vpns, 0, valid, 0, n);
+	return valid;
+    }
+
+    /**
+     * Copy the used and dirty bits of the TLB entry for <i>entry</i>, if
+     * there is one, back into <i>entry</i>.
+     *
+     * @param	entry	a resident page of the current process.
+     */
+    public static void syncTLBPage(TranslationEntry entry) {
+	int index = findTLBEntry(entry);
+	if (index != -1) {
+	    TranslationEntry tlbEntry = Machine.processor().readTLBEntry(index);
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * Remove the TLB entry for <i>entry</i>, if there is one, copying its
+     * used and dirty bits back into <i>entry</i> first.
+     *
+     * @param	entry	a resident page of the current process.
+     */
+    public static void invalidateTLBPage(TranslationEntry entry) {
+	int index = findTLBEntry(entry);
+	if (index != -1) {
+	    syncTLBPage(entry);
+	    Machine.processor().writeTLBEntry(index, invalidEntry);
+	}
+    }
+
+    /**
+     * Clear the dirty bit of the TLB entry for <i>entry</i>, if there is
+     * one, after its page has been written to swap.
+     *
+     * @param	entry	a resident page of the current process.
+     */
+    public static void cleanTLBPage(TranslationEntry entry) {
+	int index = findTLBEntry(entry);
+	if (index != -1) {
+	    TranslationEntry tlbEntry = Machine.processor().readTLBEntry(index);
+	    tlbEntry.dirty = false;
+	    Machine.processor().writeTLBEntry(index, tlbEntry);
+	}
+    }
+
+    private static int findTLBEntry(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return -1;
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == entry.vpn &&
+		tlbEntry.ppn == entry.ppn)
+		return i;
+	}
+	return -1;
+    }
+
+    private static boolean syncTLBEntry(TranslationEntry tlbEntry,
+					TranslationEntry[] pageTable) {
+	if (!tlbEntry.valid)
+	    return false;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+	return true;
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (Lib.test(dbgVM)) {
+	    System.out.println("TLB misses " + numTLBMisses
+			       + ", TLB refills " + numTLBRefills
+			       + ", page faults " + numPageFaults
+			       + ", context switches " + numSwitches);
+	    System.out.println("Evictions " + numEvictions
+			       + ", pages swapped out " + numPagesSwapped
+			       + " in " + numSwapWrites + " writes"
+			       + ", pages swapped in " + numSwapReads);
+	}
+
+	swapManager.close();
+	if (swapFileName != null)
+	    fileSystem.remove(swapFileName);
+
 	super.terminate();
     }
 
+    /** The physical pages in use, and which process page each holds. */
+    public static InvertedPageTable invertedPageTable = null;
+    /** How full TLB entries are picked for replacement. */
+    public static TLBReplacement tlbReplacement = null;
+    /** Evicts pages when physical memory is full. */
+    public static SwapManager swapManager = null;
+
+    /**
+     * TLB misses handled, TLB entries written (for misses, and to put entries
+     * back after a switch), page faults, and switches to user processes.
+     */
+    public static int numTLBMisses = 0, numTLBRefills = 0, numPageFaults = 0,
+	numSwitches = 0;
+    /**
+     * Pages evicted, dirty pages written to swap and the file writes that
+     * took, and pages read back from swap.
+     */
+    public static int numEvictions = 0, numPagesSwapped = 0, numSwapWrites = 0,
+	numSwapReads = 0;
+
+    private static String swapFileName;
+
+    /** The number of TLB entries filled since the last flush. */
+    private static int tlbFilled = 0;
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,29 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No physical pages are allocated when the program is loaded. Every page
+ * starts out invalid, and is given a physical page the first time it is
+ * touched: by the program, through a page fault or TLB miss, or by the
+ * kernel, through <tt>pinPage()</tt>. Pages of COFF sections are then read
+ * from the executable, which stays open for the life of the process, and
+ * stack and argument pages are zero-filled.
+ *
+ * <p>
+ * Resident pages are also entered in <tt>VMKernel.invertedPageTable</tt>,
+ * from which TLB misses are refilled, so a <tt>VMProcess</tt> must run under
+ * a <tt>VMKernel</tt>.
+ *
+ * <p>
+ * When physical memory is full, <tt>VMKernel.swapManager</tt> evicts pages to
+ * make room. A page that was dirty when it was evicted is read back from its
+ * swap slot the next time it is touched; any other page is loaded from where
+ * it came from in the first place.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -18,18 +39,46 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Remembers which pages are in
+     * the TLB, so they can be put back when this process runs again.
      */
     public void saveState() {
 	super.saveState();
+
+	if (!Machine.processor().hasTLB() || pageTable == null)
+	    return;
+
+	savedTLB = VMKernel.syncTLB(pageTable);
+
+	Lib.debug(dbgVM, "\tprocess " + getPid() + " switched out after "
+		  + (VMKernel.numTLBMisses - missesAtRestore)
+		  + " TLB misses");
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB holds the previous process's
+     * translations, so it is flushed, and the entries this process had when
+     * it was switched out are put back if the pages are still in memory.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	VMKernel.flushTLB();
+	VMKernel.numSwitches++;
+
+	if (pageTable != null) {
+	    for (int i=0; i<savedTLB.length; i++) {
+		TranslationEntry entry = pageTable[savedTLB[i]];
+		if (entry.valid)
+		    VMKernel.fillTLB(entry, pageTable);
+	    }
+	}
+
+	missesAtRestore = VMKernel.numTLBMisses;
     }
 
     /**
@@ -39,15 +88,199 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+	// remember where each page comes from; stack and arguments stay null
+	pageSection = new CoffSection[numPages];
+	swapSlot = new int[numPages];
+	Arrays.fill(swapSlot, -1);
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgVM, "\tmapping " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageSection[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	// the arguments are written as soon as this returns, which may not
+	// fail, so take their page now
+	if (!faultIn(numPages-1)) {
+	    coff.close();
+	    return false;
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	SwapManager swap = VMKernel.swapManager;
+	swap.lock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		VMKernel.invertedPageTable.remove(pageTable[vpn].ppn);
+		swap.clearOwner(pageTable[vpn].ppn);
+	    }
+	    if (swapSlot[vpn] != -1)
+		swap.freeSlot(swapSlot[vpn]);
+	}
+
 	super.unloadSections();
-    }    
+	swap.lock.release();
+
+	coff.close();
+	pageSection = null;
+    }
+
+    /**
+     * Every page in the address space is mapped, resident or not; it only
+     * has to be writable if <i>write</i> is set.
+     */
+    protected boolean canAccess(int vpn, boolean write) {
+	return vpn >= 0 && vpn < numPages &&
+	    !(write && pageTable[vpn].readOnly);
+    }
+
+    /**
+     * Fault in a page the kernel is about to touch, then pin it so it is not
+     * evicted until <tt>unpinPage()</tt> is called.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean write) {
+	if (vpn < 0 || vpn >= numPages)
+	    return null;
+
+	// hold the lock until the page is pinned, or it could be evicted again
+	// as soon as it is loaded
+	SwapManager swap = VMKernel.swapManager;
+	swap.lock.acquire();
+
+	TranslationEntry entry = null;
+	if (pageTable[vpn].valid || loadPage(vpn)) {
+	    entry = super.pinPage(vpn, write);
+	    if (entry != null)
+		swap.pin(entry.ppn);
+	}
+
+	swap.lock.release();
+	return entry;
+    }
+
+    /**
+     * Unpin a page pinned by <tt>pinPage()</tt>.
+     */
+    protected void unpinPage(int vpn) {
+	VMKernel.swapManager.unpin(pageTable[vpn].ppn);
+    }
+
+    /**
+     * Give <i>vpn</i> a physical page, if it does not already have one, and
+     * fill it from swap, from the executable, or with zeros.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if successful, or <tt>false</tt> if no physical
+     *		page could be freed.
+     */
+    protected boolean faultIn(int vpn) {
+	SwapManager swap = VMKernel.swapManager;
+	swap.lock.acquire();
+	boolean success = pageTable[vpn].valid || loadPage(vpn);
+	swap.lock.release();
+
+	return success;
+    }
+
+    /**
+     * Load invalid page <i>vpn</i>. The caller must hold the swap manager's
+     * lock.
+     */
+    private boolean loadPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	SwapManager swap = VMKernel.swapManager;
+
+	int ppn = swap.allocatePage();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno page can be freed for VPN" + vpn);
+	    return false;
+	}
+
+	CoffSection section = pageSection[vpn];
+	if (swapSlot[vpn] != -1) {
+	    if (!swap.readPage(swapSlot[vpn], ppn)) {
+		UserKernel.releasePP(ppn);
+		return false;
+	    }
+	}
+	else if (section != null) {
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	Lib.debug(dbgVM, "\tVPN" + vpn + " -> PPN" + ppn
+		  + (swapSlot[vpn] != -1 ? " (slot " + swapSlot[vpn] + ")" :
+		     section == null ? " (zero)" : " (" + section.getName() + ")"));
+
+	// count the fault as a use, so the clock does not take the page
+	// straight back before the faulting instruction runs again
+	entry.ppn = ppn;
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+	VMKernel.invertedPageTable.insert(getPid(), entry);
+	swap.setOwner(ppn, this);
+	VMKernel.numPageFaults++;
+	return true;
+    }
+
+    /**
+     * Called by the swap manager when page <i>vpn</i> is written to swap.
+     *
+     * @param	vpn	the page written.
+     * @param	slot	the swap slot it was written to.
+     */
+    void pageWritten(int vpn, int slot) {
+	if (swapSlot[vpn] != -1)
+	    VMKernel.swapManager.freeSlot(swapSlot[vpn]);
+	swapSlot[vpn] = slot;
+    }
+
+    /**
+     * Handle a TLB miss on <i>vaddr</i>: find the page in the inverted page
+     * table, faulting it in if it is not there, and put its translation in
+     * the TLB.
+     *
+     * @return	<tt>true</tt> if successful.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.numTLBMisses++;
+
+	TranslationEntry entry =
+	    VMKernel.invertedPageTable.lookup(getPid(), vpn);
+	if (entry == null) {
+	    if (!faultIn(vpn))
+		return false;
+	    entry = pageTable[vpn];
+	}
+
+	VMKernel.fillTLB(entry, pageTable);
+	return true;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -59,14 +292,39 @@ public class VMProcess extends UserProcess {
      */
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
+	int vaddr = processor.readRegister(Processor.regBadVAddr);
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(vaddr))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionPageFault:
+	    // the processor reads our page table directly, so the faulting
+	    // instruction will find the page once it is valid
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    if (vaddr < 0 || vpn >= numPages || pageTable[vpn].valid ||
+		!faultIn(vpn))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The section each virtual page is loaded from, or <tt>null</tt>. */
+    private CoffSection[] pageSection;
+    /** The swap slot holding each virtual page, or -1. */
+    private int[] swapSlot;
+
+    /** The pages that were in the TLB when this process was switched out. */
+    private int[] savedTLB = new int[0];
+    /** <tt>VMKernel.numTLBMisses</tt> when this process was switched in. */
+    private int missesAtRestore = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';